@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+CREATE SCHEMA graphql;
+
+CREATE TABLE graphql.PersistedQuery
+(
+    RowId SERIAL NOT NULL,
+    Container ENTITYID NOT NULL,
+    Created TIMESTAMP,
+    CreatedBy USERID,
+    Modified TIMESTAMP,
+    ModifiedBy USERID,
+
+    Name VARCHAR(255),
+    Hash VARCHAR(64) NOT NULL,
+    Query TEXT NOT NULL,
+
+    CONSTRAINT PK_PersistedQuery PRIMARY KEY (RowId),
+    CONSTRAINT UQ_PersistedQuery_Container_Hash UNIQUE (Container, Hash),
+    CONSTRAINT FK_PersistedQuery_Container FOREIGN KEY (Container) REFERENCES core.Containers (EntityId)
+);
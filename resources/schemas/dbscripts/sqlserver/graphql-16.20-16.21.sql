@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+CREATE SCHEMA graphql;
+GO
+
+CREATE TABLE graphql.PersistedQuery
+(
+    RowId INT IDENTITY(1,1) NOT NULL,
+    Container ENTITYID NOT NULL,
+    Created DATETIME,
+    CreatedBy USERID,
+    Modified DATETIME,
+    ModifiedBy USERID,
+
+    Name NVARCHAR(255),
+    Hash NVARCHAR(64) NOT NULL,
+    Query NVARCHAR(MAX) NOT NULL,
+
+    CONSTRAINT PK_PersistedQuery PRIMARY KEY (RowId),
+    CONSTRAINT UQ_PersistedQuery_Container_Hash UNIQUE (Container, Hash),
+    CONSTRAINT FK_PersistedQuery_Container FOREIGN KEY (Container) REFERENCES core.Containers (EntityId)
+);
+GO
@@ -0,0 +1,537 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import graphql.language.Field;
+import graphql.schema.DataFetchingEnvironment;
+import graphql.schema.GraphQLArgument;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLInputObjectType;
+import graphql.schema.GraphQLList;
+import graphql.schema.GraphQLNonNull;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLOutputType;
+import graphql.schema.GraphQLType;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.collections.CaseInsensitiveHashSet;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.CompareType;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.Sort;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.query.FieldKey;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static graphql.Scalars.GraphQLBoolean;
+import static graphql.Scalars.GraphQLInt;
+import static graphql.Scalars.GraphQLString;
+import static graphql.schema.GraphQLArgument.newArgument;
+import static graphql.schema.GraphQLFieldDefinition.newFieldDefinition;
+import static graphql.schema.GraphQLInputObjectField.newInputObjectField;
+import static graphql.schema.GraphQLInputObjectType.newInputObject;
+import static graphql.schema.GraphQLObjectType.newObject;
+import static graphql.schema.GraphQLTypeReference.typeRef;
+
+/**
+ * List root field for a table, following the connection pattern (http://graphql.org/learn/pagination/):
+ * <pre>
+ * {
+ *     CellLineList(filters: [{ column: "Name", op: "startswith", value: "CL-" }], sort: "-Created", first: 50, after: "...") {
+ *         nodes { Name, RowId }
+ *         edges { cursor, node { Name } }
+ *         pageInfo { hasNextPage, endCursor }
+ *     }
+ * }
+ * </pre>
+ *
+ * Filters use the LabKey filter operators (CompareType URL keys) and the sort uses the LabKey sort syntax.
+ * Paging is keyset based: the sort is made unique by appending the primary key columns and the cursor holds the
+ * sort key values of a row, so the next page is selected by a "sort key after cursor" filter rather than OFFSET.
+ * A table with no primary key can only be paged with a 'sort'; without one, 'after' is rejected and there's no endCursor.
+ */
+public class GraphQLConnection
+{
+    public static final String FILTER_TYPE = "filter";
+    public static final String PAGE_INFO_TYPE = "pageInfo";
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 10000;
+
+    private static final ObjectMapper CURSOR_MAPPER = new ObjectMapper();
+
+    private GraphQLConnection()
+    {
+    }
+
+    private static final GraphQLInputObjectType FILTER = newInputObject()
+            .name(FILTER_TYPE)
+            .field(newInputObjectField()
+                    .name("column")
+                    .description("Column name or lookup path, e.g. \"CreatedBy/Email\"")
+                    .type(new GraphQLNonNull(GraphQLString))
+                    .build())
+            .field(newInputObjectField()
+                    .name("op")
+                    .description("LabKey filter operator, e.g. \"eq\", \"neq\", \"startswith\", \"in\".  Defaults to \"eq\"")
+                    .type(GraphQLString)
+                    .build())
+            .field(newInputObjectField()
+                    .name("value")
+                    .type(GraphQLString)
+                    .build())
+            .build();
+
+    private static final GraphQLObjectType PAGE_INFO = newObject()
+            .name(PAGE_INFO_TYPE)
+            .field(newFieldDefinition()
+                    .name("hasNextPage")
+                    .type(new GraphQLNonNull(GraphQLBoolean))
+                    .build())
+            .field(newFieldDefinition()
+                    .name("endCursor")
+                    .type(GraphQLString)
+                    .build())
+            .build();
+
+    /**
+     * Add the types shared by all connection fields.  The same instances are used by every schema.
+     */
+    public static void addTypes(Set<GraphQLType> types)
+    {
+        types.add(FILTER);
+        types.add(PAGE_INFO);
+    }
+
+    /**
+     * Whether the names generated for the table's list field, "&lt;T&gt;List" and its "&lt;T&gt;Edge" and
+     * "&lt;T&gt;Connection" types, are free: a table of the same schema with one of those names has a root field
+     * (and, in a single-table schema, a row type) of that name, which takes precedence, and two fields or types with
+     * the same name would fail the schema build.
+     */
+    public static boolean canCreateListField(@NotNull TableInfo table)
+    {
+        String name = table.getName();
+        Set<String> reserved = new CaseInsensitiveHashSet(FILTER_TYPE, PAGE_INFO_TYPE, GraphQLLinks.getLinkType().getName());
+        if (table.getUserSchema() != null)
+            reserved.addAll(table.getUserSchema().getTableNames());
+
+        return !reserved.contains(name + "List") && !reserved.contains(name + "Edge") && !reserved.contains(name + "Connection");
+    }
+
+    public static GraphQLFieldDefinition createListField(@NotNull TableInfo table, @NotNull GraphQLOutputType rowType)
+    {
+        String name = table.getName();
+
+        GraphQLObjectType edgeType = newObject()
+                .name(name + "Edge")
+                .field(newFieldDefinition()
+                        .name("cursor")
+                        .type(new GraphQLNonNull(GraphQLString))
+                        .build())
+                .field(newFieldDefinition()
+                        .name("node")
+                        .type(rowType)
+                        .build())
+                .build();
+
+        GraphQLObjectType connectionType = newObject()
+                .name(name + "Connection")
+                .field(newFieldDefinition()
+                        .name("edges")
+                        .type(new GraphQLList(edgeType))
+                        .build())
+                .field(newFieldDefinition()
+                        .name("nodes")
+                        .type(new GraphQLList(rowType))
+                        .build())
+                .field(newFieldDefinition()
+                        .name("pageInfo")
+                        .type(new GraphQLNonNull(typeRef(PAGE_INFO_TYPE)))
+                        .build())
+                .build();
+
+        return newFieldDefinition()
+                .name(name + "List")
+                .description(table.getDescription())
+                .type(connectionType)
+                .argument(createFilterArgument())
+                .argument(newArgument()
+                        .name("sort")
+                        .description("LabKey sort, e.g. \"-Created,Name\"")
+                        .type(GraphQLString)
+                        .build())
+                .argument(newArgument()
+                        .name("first")
+                        .description("Page size; defaults to " + DEFAULT_PAGE_SIZE + ", at most " + MAX_PAGE_SIZE)
+                        .type(GraphQLInt)
+                        .build())
+                .argument(newArgument()
+                        .name("after")
+                        .description("Return rows after the row with this cursor")
+                        .type(GraphQLString)
+                        .build())
+                .dataFetcher(GraphQLExecutor.async(env -> fetch(env, table)))
+                .build();
+    }
+
+    public static GraphQLArgument createFilterArgument()
+    {
+        return newArgument()
+                .name("filters")
+                .type(new GraphQLList(new GraphQLNonNull(typeRef(FILTER_TYPE))))
+                .build();
+    }
+
+    private static Map<String, Object> fetch(DataFetchingEnvironment env, TableInfo table)
+    {
+        GraphQLRequestContext ctx = GraphQLRequestContext.get(env);
+        TableInfo t = ctx != null ? ctx.getTable(table) : table;
+        if (ctx == null)
+            ctx = new GraphQLRequestContext(t.getUserSchema().getUser(), t.getUserSchema().getContainer());
+
+        List<KeyPart> keyset = getKeyset(t, env.getArgument("sort"));
+
+        // when streaming, the page and the position are driven by GraphQLStreamWriter instead of the arguments
+        StreamPage streamPage = ctx.getStreamPage();
+
+        SimpleFilter filter = createFilter(env.getArgument("filters"));
+        String after = streamPage != null && streamPage._after != null ? streamPage._after : env.getArgument("after");
+        if (after != null)
+        {
+            // without a primary key or a sort there's no order to page through
+            if (keyset.isEmpty())
+                throw new IllegalArgumentException("'after' requires a 'sort' for '" + t.getName() + "', which has no primary key");
+            addAfterClause(t, filter, keyset, decodeCursor(after, keyset));
+        }
+
+        Integer first = env.getArgument("first");
+        int pageSize;
+        if (streamPage != null)
+        {
+            // 'first' limits the total number of rows streamed over all pages
+            streamPage._limit = first;
+            pageSize = streamPage._pageSize;
+            if (first != null)
+                pageSize = Math.max(0, Math.min(pageSize, first - streamPage._written));
+        }
+        else
+        {
+            pageSize = first == null ? DEFAULT_PAGE_SIZE : Math.max(0, Math.min(first, MAX_PAGE_SIZE));
+        }
+
+        // the row fields are selected under "nodes" and "edges { node }"
+        Map<String, List<Field>> selected = GraphQLSelection.getSelectedFields(env);
+        List<Field> nodeFields = new ArrayList<>(selected.getOrDefault("nodes", Collections.emptyList()));
+        List<Field> edges = selected.get("edges");
+        if (edges != null)
+            nodeFields.addAll(GraphQLSelection.getSelectedFields(edges, env.getFragmentsByName()).getOrDefault("node", Collections.emptyList()));
+
+        List<ColumnInfo> keyColumns = new ArrayList<>();
+        for (KeyPart part : keyset)
+            keyColumns.add(part._column);
+
+        GraphQLQueryPlan plan = GraphQLQueryPlan.create(ctx, t, GraphQLSelection.getSelectedFields(nodeFields, env.getFragmentsByName()), env.getFragmentsByName(), keyColumns);
+
+        // select one extra row to find out if there is a next page
+        Sort sort = createSort(keyset);
+        long start = System.nanoTime();
+        List<Map<String, Object>> rows = plan.select(plan.getSelector(filter, sort)
+                .setMaxRows(pageSize + 1));
+        GraphQLInstrumentation.recordSql(GraphQLTrace.describe(t, plan.getColumns(), filter, sort), rows.size(), start);
+
+        boolean hasNextPage = rows.size() > pageSize;
+        if (hasNextPage)
+            rows = rows.subList(0, pageSize);
+
+        List<Map<String, Object>> edgeList = new ArrayList<>(rows.size());
+        for (Map<String, Object> row : rows)
+        {
+            Map<String, Object> edge = new LinkedHashMap<>();
+            edge.put("cursor", encodeCursor(row, keyset));
+            edge.put("node", row);
+            edgeList.add(edge);
+        }
+
+        Map<String, Object> pageInfo = new LinkedHashMap<>();
+        pageInfo.put("hasNextPage", hasNextPage);
+        // a table with no primary key can only be paged by a sort, so without one there's no cursor to continue from
+        pageInfo.put("endCursor", edgeList.isEmpty() || keyset.isEmpty() ? null : edgeList.get(edgeList.size() - 1).get("cursor"));
+
+        if (streamPage != null)
+        {
+            streamPage._hasNextPage = hasNextPage;
+            streamPage._endCursor = (String)pageInfo.get("endCursor");
+        }
+
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("edges", edgeList);
+        ret.put("nodes", rows);
+        ret.put("pageInfo", pageInfo);
+        return ret;
+    }
+
+    /**
+     * One page of a streamed list field: the writer sets the position and page size, and the list field's
+     * data fetcher reports back where the page ended.
+     */
+    public static class StreamPage
+    {
+        private final @Nullable String _after;
+        private final int _pageSize;
+        private final int _written;
+
+        private @Nullable Integer _limit;
+        private @Nullable String _endCursor;
+        private boolean _hasNextPage;
+
+        /**
+         * @param after cursor of the last row already written, or null for the first page
+         * @param pageSize maximum number of rows in the page
+         * @param written number of rows already written
+         */
+        public StreamPage(@Nullable String after, int pageSize, int written)
+        {
+            _after = after;
+            _pageSize = pageSize;
+            _written = written;
+        }
+
+        /** The 'first' argument of the query, which limits the total number of streamed rows. */
+        @Nullable
+        public Integer getLimit()
+        {
+            return _limit;
+        }
+
+        @Nullable
+        public String getEndCursor()
+        {
+            return _endCursor;
+        }
+
+        public boolean hasNextPage()
+        {
+            return _hasNextPage;
+        }
+    }
+
+    public static SimpleFilter createFilter(@Nullable List<Map<String, Object>> filters)
+    {
+        SimpleFilter filter = new SimpleFilter();
+        if (filters == null)
+            return filter;
+
+        for (Map<String, Object> f : filters)
+        {
+            String column = (String)f.get("column");
+            String op = StringUtils.defaultIfBlank((String)f.get("op"), "eq");
+
+            CompareType compareType = CompareType.getByURLKey(op);
+            if (compareType == null)
+                throw new IllegalArgumentException("Unknown filter operator '" + op + "' for column '" + column + "'");
+
+            filter.addClause(compareType.createFilterClause(FieldKey.fromString(column), f.get("value")));
+        }
+
+        return filter;
+    }
+
+    private static class KeyPart
+    {
+        final ColumnInfo _column;
+        final boolean _ascending;
+
+        KeyPart(ColumnInfo column, boolean ascending)
+        {
+            _column = column;
+            _ascending = ascending;
+        }
+    }
+
+    // The requested sort columns followed by the primary key columns, which make the sort key unique
+    private static List<KeyPart> getKeyset(TableInfo table, @Nullable String sortParam)
+    {
+        List<KeyPart> keyset = new ArrayList<>();
+        if (sortParam != null)
+        {
+            for (Sort.SortField sortField : new Sort(sortParam).getSortList())
+            {
+                FieldKey fieldKey = sortField.getFieldKey();
+                ColumnInfo col = fieldKey.getParent() == null ? table.getColumn(fieldKey) : null;
+                if (col == null)
+                    throw new IllegalArgumentException("Sort column '" + fieldKey + "' must be a column of '" + table.getName() + "'");
+                keyset.add(new KeyPart(col, sortField.getSortDirection() == Sort.SortDirection.ASC));
+            }
+        }
+
+        for (ColumnInfo pkCol : table.getPkColumns())
+        {
+            if (keyset.stream().noneMatch(part -> part._column.getName().equalsIgnoreCase(pkCol.getName())))
+                keyset.add(new KeyPart(pkCol, true));
+        }
+
+        return keyset;
+    }
+
+    private static Sort createSort(List<KeyPart> keyset)
+    {
+        StringBuilder sb = new StringBuilder();
+        String sep = "";
+        for (KeyPart part : keyset)
+        {
+            sb.append(sep).append(part._ascending ? "" : "-").append(part._column.getFieldKey().toString());
+            sep = ",";
+        }
+        return new Sort(sb.toString());
+    }
+
+    /**
+     * Add a filter for rows that sort after the cursor's key:
+     * (k1 > v1) OR (k1 = v1 AND k2 > v2) OR ... with the comparison flipped for descending columns.
+     */
+    private static void addAfterClause(TableInfo table, SimpleFilter filter, List<KeyPart> keyset, List<Object> values)
+    {
+
+        // PostgreSQL sorts NULL after all other values, SQL Server sorts it before
+        boolean nullsLast = table.getSqlDialect().isPostgreSQL();
+
+        SimpleFilter.OrClause or = new SimpleFilter.OrClause();
+        boolean any = false;
+        for (int i = 0; i < keyset.size(); i++)
+        {
+            SimpleFilter.FilterClause after = createAfterClause(keyset.get(i), values.get(i), nullsLast);
+            if (after == null)
+                continue;
+
+            SimpleFilter.AndClause and = new SimpleFilter.AndClause();
+            for (int j = 0; j < i; j++)
+            {
+                FieldKey fieldKey = keyset.get(j)._column.getFieldKey();
+                Object value = values.get(j);
+                and.addClause(value == null
+                        ? new CompareType.CompareClause(fieldKey, CompareType.ISBLANK, null)
+                        : new CompareType.CompareClause(fieldKey, CompareType.EQUAL, value));
+            }
+            and.addClause(after);
+            or.addClause(and);
+            any = true;
+        }
+
+        // nothing sorts after the cursor's key
+        filter.addClause(any ? or : new SimpleFilter.SQLClause("1 = 0", null));
+    }
+
+    // Clause for the column values that sort after the value, or null if nothing sorts after it
+    @Nullable
+    private static SimpleFilter.FilterClause createAfterClause(KeyPart part, @Nullable Object value, boolean nullsLast)
+    {
+        FieldKey fieldKey = part._column.getFieldKey();
+        boolean nullsAfter = part._ascending == nullsLast;
+
+        if (value == null)
+            return nullsAfter ? null : new CompareType.CompareClause(fieldKey, CompareType.NONBLANK, null);
+
+        SimpleFilter.FilterClause compare = new CompareType.CompareClause(fieldKey, part._ascending ? CompareType.GT : CompareType.LT, value);
+        if (!nullsAfter)
+            return compare;
+
+        SimpleFilter.OrClause or = new SimpleFilter.OrClause();
+        or.addClause(compare);
+        or.addClause(new CompareType.CompareClause(fieldKey, CompareType.ISBLANK, null));
+        return or;
+    }
+
+    private static String encodeCursor(Map<String, Object> row, List<KeyPart> keyset)
+    {
+        List<Object> values = new ArrayList<>(keyset.size());
+        for (KeyPart part : keyset)
+        {
+            Object value = row.get(part._column.getName());
+            if (value instanceof Date)
+            {
+                // keep sub-millisecond precision so rows with nearly equal timestamps aren't skipped
+                Map<String, Object> date = new LinkedHashMap<>();
+                date.put("time", ((Date)value).getTime());
+                if (value instanceof Timestamp)
+                    date.put("nanos", ((Timestamp)value).getNanos());
+                value = date;
+            }
+            values.add(value);
+        }
+
+        try
+        {
+            byte[] json = CURSOR_MAPPER.writeValueAsBytes(values);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(json);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<Object> decodeCursor(String cursor, List<KeyPart> keyset)
+    {
+        List<?> values;
+        try
+        {
+            String json = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            values = CURSOR_MAPPER.readValue(json, List.class);
+        }
+        catch (IllegalArgumentException | IOException e)
+        {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+
+        if (values.size() != keyset.size())
+            throw new IllegalArgumentException("Cursor doesn't match the sort: " + cursor);
+
+        List<Object> ret = new ArrayList<>(values.size());
+        for (int i = 0; i < values.size(); i++)
+        {
+            Object value = values.get(i);
+            if (value instanceof Map)
+            {
+                Map<?, ?> date = (Map<?, ?>)value;
+                Timestamp ts = new Timestamp(((Number)date.get("time")).longValue());
+                if (date.get("nanos") instanceof Number)
+                    ts.setNanos(((Number)date.get("nanos")).intValue());
+                value = ts;
+            }
+            else if (value != null)
+            {
+                value = keyset.get(i)._column.getJdbcType().convert(value);
+            }
+            ret.add(value);
+        }
+        return ret;
+    }
+}
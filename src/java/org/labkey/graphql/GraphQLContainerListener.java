@@ -30,21 +30,35 @@ public class GraphQLContainerListener implements ContainerListener
     @Override
     public void containerCreated(Container c, User user)
     {
+        GraphQLLookupCache.uncache(c);
     }
 
     @Override
     public void containerDeleted(Container c, User user)
     {
+        GraphQLSchemaCache.uncache(c);
+        GraphQLLookupCache.uncache(c);
+        GraphQLResultCache.uncache(c);
+        GraphQLManager.get().deleteAllData(c);
     }
 
     @Override
     public void propertyChange(PropertyChangeEvent evt)
     {
+        if (evt.getSource() instanceof Container)
+        {
+            GraphQLSchemaCache.uncache((Container)evt.getSource());
+            GraphQLLookupCache.uncache((Container)evt.getSource());
+            GraphQLResultCache.uncache((Container)evt.getSource());
+        }
     }
 
     @Override
     public void containerMoved(Container c, Container oldParent, User user)
     {
+        GraphQLSchemaCache.uncache(c);
+        GraphQLLookupCache.uncache(c);
+        GraphQLResultCache.uncache(c);
     }
 
     @NotNull @Override
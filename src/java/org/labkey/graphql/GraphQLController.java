@@ -16,8 +16,14 @@
 
 package org.labkey.graphql;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import graphql.ExecutionInput;
 import graphql.ExecutionResult;
 import graphql.GraphQL;
+import graphql.execution.preparsed.PreparsedDocumentEntry;
+import graphql.language.Definition;
+import graphql.language.Document;
+import graphql.language.OperationDefinition;
 import graphql.schema.DataFetcher;
 import graphql.schema.DataFetchingEnvironment;
 import graphql.schema.GraphQLFieldDefinition;
@@ -27,20 +33,23 @@ import graphql.schema.GraphQLList;
 import graphql.schema.GraphQLNonNull;
 import graphql.schema.GraphQLObjectType;
 import graphql.schema.GraphQLOutputType;
+import graphql.schema.GraphQLScalarType;
 import graphql.schema.GraphQLSchema;
 import graphql.schema.GraphQLType;
 import graphql.schema.GraphQLTypeReference;
-import graphql.schema.PropertyDataFetcher;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.dataloader.DataLoader;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.labkey.api.action.ApiAction;
 import org.labkey.api.action.Marshal;
 import org.labkey.api.action.Marshaller;
+import org.labkey.api.action.SimpleApiJsonForm;
 import org.labkey.api.action.SimpleViewAction;
 import org.labkey.api.action.SpringActionController;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
-import org.labkey.api.data.AbstractTableInfo;
 import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ForeignKey;
@@ -57,21 +66,31 @@ import org.labkey.api.query.UserIdForeignKey;
 import org.labkey.api.query.UserSchema;
 import org.labkey.api.security.RequiresPermission;
 import org.labkey.api.security.User;
+import org.labkey.api.security.permissions.AdminPermission;
 import org.labkey.api.security.permissions.ReadPermission;
-import org.labkey.api.util.StringExpression;
 import org.labkey.api.view.JspView;
 import org.labkey.api.view.NavTree;
 import org.labkey.api.view.NotFoundException;
 import org.springframework.validation.BindException;
+import org.springframework.validation.Errors;
 import org.springframework.web.servlet.ModelAndView;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.beans.Introspector;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static graphql.Scalars.GraphQLBoolean;
@@ -84,12 +103,15 @@ import static graphql.schema.GraphQLArgument.newArgument;
 import static graphql.schema.GraphQLFieldDefinition.newFieldDefinition;
 import static graphql.schema.GraphQLInterfaceType.newInterface;
 import static graphql.schema.GraphQLObjectType.newObject;
-import static graphql.schema.GraphQLTypeReference.typeRef;
 
 @Marshal(Marshaller.Jackson)
 public class GraphQLController extends SpringActionController
 {
     private static final DefaultActionResolver _actionResolver = new DefaultActionResolver(GraphQLController.class);
+    private static final Pattern GRAPHQL_NAME = Pattern.compile("[_A-Za-z][_0-9A-Za-z]*");
+    // number of fields with the most resolver time reported by StatsAction
+    private static final int HOT_FIELDS = 50;
+    private static final int MAX_BATCH_OPERATIONS = 50;
     public static final String NAME = "graphql";
 
     public GraphQLController()
@@ -136,11 +158,17 @@ public class GraphQLController extends SpringActionController
 
     public static class QForm
     {
+        private static final ObjectMapper VARIABLES_MAPPER = new ObjectMapper();
+
         private String _schemaName;
         private String _queryName;
 
         private String _q;
+        private String _queryId;
         private Map<String, Object> _variables;
+        private boolean _stream;
+        private boolean _extensions;
+        private boolean _trace;
 
         public String getSchemaName()
         {
@@ -171,6 +199,69 @@ public class GraphQLController extends SpringActionController
         {
             _q = q;
         }
+
+        /** RowId or SHA-256 hash of a query registered with RegisterQueryAction. */
+        public String getQueryId()
+        {
+            return _queryId;
+        }
+
+        public void setQueryId(String queryId)
+        {
+            _queryId = queryId;
+        }
+
+        public Map<String, Object> getVariables()
+        {
+            return _variables;
+        }
+
+        public void setVariables(Map<String, Object> variables)
+        {
+            _variables = variables;
+        }
+
+        /** The variables as a JSON object, for GET requests. */
+        public void setVariablesJson(String variables) throws IOException
+        {
+            _variables = StringUtils.isBlank(variables) ? null : VARIABLES_MAPPER.readValue(variables, Map.class);
+        }
+
+        /** Write the rows of a single list field to the response a page at a time. */
+        public boolean isStream()
+        {
+            return _stream;
+        }
+
+        public void setStream(boolean stream)
+        {
+            _stream = stream;
+        }
+
+        /** Respond with { data: ..., extensions: ... } so the response can include the query's cost. */
+        public boolean isExtensions()
+        {
+            return _extensions;
+        }
+
+        public void setExtensions(boolean extensions)
+        {
+            _extensions = extensions;
+        }
+
+        /**
+         * Include the execution trace (see {@link GraphQLTrace}) in the response's extensions.  The trace shows the
+         * generated SQL, so only site administrators and developers may request it.
+         */
+        public boolean isTrace()
+        {
+            return _trace;
+        }
+
+        public void setTrace(boolean trace)
+        {
+            _trace = trace;
+        }
     }
 
     /*
@@ -284,6 +375,33 @@ public class GraphQLController extends SpringActionController
      *      }
      *  });
      *
+     *  Omit 'queryName' to query any table of the schema in one request:
+     *
+     *  LABKEY.Ajax.request({
+     *      url: LABKEY.ActionURL.buildURL('graphql', 'query.api'),
+     *      jsonData: {
+     *          schemaName: 'exp.data',
+     *          q: '{ CellLine(RowId: 15920) { Name }, ConstructList(first: 10) { nodes { Name, RowId } } }'
+     *      }
+     *  });
+     *
+     *  Defer expensive fields with @defer on a fragment, or @stream on a list field, to receive the other fields first
+     *  in a multipart/mixed response (see GraphQLIncrementalWriter):
+     *
+     *      q: '{ ExpressionSystem(RowId: 402) { Name, RowId, ... @defer(label: "constructs") { Constructs { Name } } } }'
+     *
+     *  Insert, update or delete many rows of an updatable table in one transaction with the "insert<Table>",
+     *  "update<Table>" and "delete<Table>" mutations (see GraphQLMutations).  Mutations must be sent with POST:
+     *
+     *      q: 'mutation { insertCellLine(rows: [{ Name: "A" }, { Name: "B" }]) { RowId, Name } }'
+     *
+     *  Registered queries may be executed with GET, passing variables as JSON in 'variablesJson'.  In folders with the
+     *  ConditionalGet property set, once a query has been executed, GET responses carry an ETag computed from the state
+     *  of the tables it reads (see GraphQLETag), and a GET with a matching If-None-Match header is answered with
+     *  304 Not Modified without executing the query:
+     *
+     *      GET graphql-query.api?schemaName=exp.data&queryId=<hash>&variablesJson={"first":10}
+     *
      * LABKEY.Ajax.request({
      *  url: LABKEY.ActionURL.buildURL("graphql", "query.api"),
      *  jsonData: {
@@ -300,16 +418,105 @@ public class GraphQLController extends SpringActionController
         @Override
         public Object execute(QForm form, BindException errors) throws Exception
         {
-            UserSchema schema = QueryService.get().getUserSchema(getUser(), getContainer(), form.getSchemaName());
-            if (schema == null)
-                throw new NotFoundException("schema: " + form.getSchemaName());
+            if (form.isTrace() && !getUser().isSiteAdmin() && !getUser().isDeveloper())
+            {
+                errors.reject(ERROR_MSG, "Only site administrators and developers may request a trace");
+                return null;
+            }
 
-            TableInfo table = schema.getTable(form.getQueryName());
-            if (table == null)
-                throw new NotFoundException("query: " + form.getQueryName());
+            GraphQLTrace trace = form.isTrace() && !form.isStream() ? new GraphQLTrace() : null;
+            PreparedQuery prepared = prepareQuery(form, trace, errors);
+            if (prepared == null)
+                return null;
+
+            String query = prepared._query;
+            GraphQLSchema gqlSchema = prepared._schema;
+            GraphQL graphQL = prepared._graphQL;
+            Map<String, Object> extensions = prepared._extensions;
 
-            GraphQLSchema gqlSchema = createSchema(table);
-            ExecutionResult result = new GraphQL(gqlSchema).execute(form.getQ());
+            if (prepared._incremental != null)
+            {
+                if (form.isStream())
+                {
+                    errors.reject(ERROR_MSG, "@defer and @stream can't be used with 'stream'");
+                    return null;
+                }
+                prepared._incremental.write(getViewContext().getResponse(), graphQL, new GraphQLRequestContext(getUser(), getContainer()));
+                return null;
+            }
+
+            if (form.isStream())
+            {
+                GraphQLStreamWriter writer;
+                try
+                {
+                    writer = GraphQLStreamWriter.create(graphQL, gqlSchema, query, form.getVariables(), getUser(), getContainer());
+                }
+                catch (IllegalArgumentException e)
+                {
+                    errors.reject(ERROR_MSG, e.getMessage());
+                    return null;
+                }
+                writer.write(getViewContext().getResponse(), GraphQLManager.get().getMaxBatchSize(getContainer()));
+                return null;
+            }
+
+            // the key is only needed for a conditional GET or the result cache; traced requests are always executed,
+            // so the trace describes real work
+            HttpServletRequest request = getViewContext().getRequest();
+            boolean resultCache = GraphQLManager.get().isResultCache(getContainer());
+            boolean conditional = !form.isExtensions() && "GET".equalsIgnoreCase(request.getMethod()) && GraphQLManager.get().isConditionalGet(getContainer());
+            String key = null;
+            if ((conditional || resultCache) && trace == null && prepared._document != null && !hasMutation(prepared._document))
+                key = GraphQLResultCache.getKey(getContainer(), getUser(), form.getSchemaName(), form.getQueryName(), prepared._document, form.getVariables());
+            conditional &= key != null;
+
+            // the state of the query's tables, computed once: it's both the ETag and the version of a cached result
+            // that may be used, so a cached body is never sent under a newer tag than its own
+            String state = key != null ? GraphQLETag.getETag(key, getUser()) : null;
+
+            // answer a GET with 304 Not Modified if the tables the query reads haven't changed since the client's copy
+            if (conditional && state != null)
+            {
+                HttpServletResponse response = getViewContext().getResponse();
+                response.setHeader("ETag", state);
+                response.setHeader("Cache-Control", "private, no-cache");
+                if (GraphQLETag.matches(request.getHeader("If-None-Match"), state))
+                {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return null;
+                }
+            }
+
+            // a result is only cached, and a cached one only used, while the state of its tables is known and unchanged
+            String cacheKey = resultCache ? key : null;
+            if (cacheKey != null && state != null)
+            {
+                Object cached = GraphQLResultCache.get(cacheKey, state);
+                if (cached != null)
+                {
+                    if (!form.isExtensions())
+                        return cached;
+
+                    extensions.put("resultCache", "hit");
+                    Map<String, Object> response = new LinkedHashMap<>();
+                    response.put("data", cached);
+                    response.put("extensions", extensions);
+                    return response;
+                }
+            }
+
+            GraphQLRequestContext ctx = new GraphQLRequestContext(getUser(), getContainer());
+            ExecutionInput input = ExecutionInput.newExecutionInput()
+                    .query(query)
+                    .variables(form.getVariables() != null ? form.getVariables() : Collections.emptyMap())
+                    .context(ctx)
+                    .build();
+            long version = GraphQLResultCache.getVersion();
+            long start = System.nanoTime();
+            ExecutionResult result = graphQL.execute(input);
+            if (trace != null)
+                trace.addPhase("execute", start);
             if (!result.getErrors().isEmpty())
             {
                 errors.reject(ERROR_MSG, result.getErrors().get(0).getMessage());
@@ -317,72 +524,703 @@ public class GraphQLController extends SpringActionController
             }
 
             Object ret = result.getData();
+            Set<String> tableKeys = ctx.getTableKeys();
+            boolean sameTables = key != null && GraphQLETag.recordTables(key, ctx);
+            if (cacheKey != null && state != null && tableKeys != null && sameTables)
+                GraphQLResultCache.put(cacheKey, ret, tableKeys, version, state);
+
+            if (form.isExtensions() || trace != null)
+            {
+                Map<String, Object> lookups = new LinkedHashMap<>();
+                lookups.put("memoHits", ctx.getMemoHits());
+                lookups.put("savedQueries", ctx.getSavedQueries());
+                extensions.put("lookups", lookups);
+                if (cacheKey != null)
+                    extensions.put("resultCache", tableKeys != null ? (state != null ? "miss" : "unknownState") : "uncacheable");
+                if (trace != null)
+                    extensions.put("trace", trace.toMap());
+
+                Map<String, Object> response = new LinkedHashMap<>();
+                response.put("data", ret);
+                response.put("extensions", extensions);
+                ret = response;
+            }
             //return success(ret);
             return ret;
         }
     }
 
+    /**
+     * A query resolved to its text and schema and checked against the user's limits, ready to execute.
+     */
+    private static class PreparedQuery
+    {
+        private final String _query;
+        private final GraphQLSchema _schema;
+        private final GraphQL _graphQL;
+        private final @Nullable GraphQLIncrementalWriter _incremental;
+        private final Map<String, Object> _extensions = new LinkedHashMap<>();
+        private @Nullable Document _document; // the parsed document, if it's valid
+        private long _cost; // the estimated cost, if the document is valid
+
+        PreparedQuery(String query, GraphQLSchema schema, GraphQL graphQL, @Nullable GraphQLIncrementalWriter incremental)
+        {
+            _query = query;
+            _schema = schema;
+            _graphQL = graphQL;
+            _incremental = incremental;
+        }
+    }
+
+    /**
+     * Resolve the form's query text and schema, and reject queries over the user's cost and depth limits before any SQL runs.
+     *
+     * @return the prepared query, or null if it was rejected
+     * @throws NotFoundException if the persisted query, schema or table doesn't exist
+     */
+    @Nullable
+    private PreparedQuery prepareQuery(QForm form, @Nullable GraphQLTrace trace, Errors errors)
+    {
+        String query = form.getQ();
+        if (form.getQueryId() != null)
+        {
+            PersistedQuery pq = GraphQLManager.get().getPersistedQuery(getContainer(), form.getQueryId());
+            if (pq == null)
+                throw new NotFoundException("persisted query: " + form.getQueryId());
+            query = pq.getQuery();
+        }
+        else if (GraphQLManager.get().isPersistedQueriesOnly(getContainer()))
+        {
+            errors.reject(ERROR_MSG, "Only persisted queries may be executed in this folder.  Use 'queryId' to execute a registered query.");
+            return null;
+        }
+
+        // a query with @defer or @stream is validated and costed as a whole, without the directives: its parts reuse
+        // the rows the initial query selected, so together they select about what the whole query would
+        GraphQLIncrementalWriter incremental = null;
+        if (GraphQLIncrementalWriter.isIncremental(query))
+        {
+            try
+            {
+                incremental = GraphQLIncrementalWriter.create(query, form.getVariables());
+            }
+            catch (IllegalArgumentException e)
+            {
+                errors.reject(ERROR_MSG, e.getMessage());
+                return null;
+            }
+            query = incremental.getFullQuery();
+        }
+
+        long start = System.nanoTime();
+        GraphQLSchema gqlSchema = getSchema(getUser(), getContainer(), form.getSchemaName(), form.getQueryName(), query);
+        if (trace != null)
+            trace.addPhase("schema", start);
+
+        GraphQL graphQL = GraphQL.newGraphQL(gqlSchema)
+                .preparsedDocumentProvider(GraphQLDocumentCache.getProvider(gqlSchema))
+                .instrumentation(new GraphQLInstrumentation(trace))
+                .build();
+        PreparedQuery prepared = new PreparedQuery(query, gqlSchema, graphQL, incremental);
+
+        start = System.nanoTime();
+        PreparsedDocumentEntry entry = GraphQLDocumentCache.getDocument(gqlSchema, query);
+        if (trace != null)
+            trace.addPhase("parseAndValidate", start);
+        if (incremental != null && entry.hasErrors())
+        {
+            errors.reject(ERROR_MSG, entry.getErrors().get(0).getMessage());
+            return null;
+        }
+        if (!entry.hasErrors() && hasMutation(entry.getDocument()))
+        {
+            // each part of an incremental response is executed separately, which would apply the mutation again
+            if (incremental != null)
+            {
+                errors.reject(ERROR_MSG, "@defer and @stream can't be used in a mutation.");
+                return null;
+            }
+            if (!"POST".equalsIgnoreCase(getViewContext().getRequest().getMethod()))
+            {
+                errors.reject(ERROR_MSG, "Mutations must be sent with POST.");
+                return null;
+            }
+        }
+        if (!entry.hasErrors())
+        {
+            prepared._document = entry.getDocument();
+            start = System.nanoTime();
+            GraphQLCostAnalyzer.Cost cost = GraphQLCostAnalyzer.analyze(gqlSchema, entry.getDocument(), form.getVariables(), form.isStream());
+            if (trace != null)
+                trace.addPhase("cost", start);
+            GraphQLCostAnalyzer.Limits limits = GraphQLManager.get().getQueryLimits(getContainer(), getUser());
+            String message = limits.check(cost);
+            if (message != null)
+            {
+                errors.reject(ERROR_MSG, message);
+                return null;
+            }
+            prepared._cost = cost.getCost();
+            prepared._extensions.put("cost", limits.toMap(cost));
+        }
+
+        return prepared;
+    }
+
+    private static boolean hasMutation(Document document)
+    {
+        for (Definition definition : document.getDefinitions())
+        {
+            if (definition instanceof OperationDefinition && ((OperationDefinition)definition).getOperation() == OperationDefinition.Operation.MUTATION)
+                return true;
+        }
+        return false;
+    }
+
+    public static class BatchForm extends SimpleApiJsonForm
+    {
+        /**
+         * The operations: each has the properties of a QueryAction request (schemaName, queryName, q or queryId, and variables).
+         */
+        public List<QForm> getOperations()
+        {
+            List<QForm> ret = new ArrayList<>();
+            JSONArray operations = getJsonObject() == null ? null : getJsonObject().optJSONArray("operations");
+            if (operations == null)
+                return ret;
+
+            for (int i = 0; i < operations.length(); i++)
+            {
+                JSONObject operation = operations.getJSONObject(i);
+                QForm form = new QForm();
+                form.setSchemaName(operation.optString("schemaName", null));
+                form.setQueryName(operation.optString("queryName", null));
+                form.setQ(operation.optString("q", null));
+                form.setQueryId(operation.optString("queryId", null));
+                form.setVariables(operation.optJSONObject("variables"));
+                form.setExtensions(operation.optBoolean("extensions"));
+                ret.add(form);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Execute several queries in one request, e.g. the queries of a dashboard's web parts:
+     *
+     *<pre>
+     * { operations: [
+     *     { schemaName: 'core', queryName: 'Users', q: '{ ... }' },
+     *     { schemaName: 'exp', q: '{ Data(first: 10) { ... } }', variables: { ... } }
+     * ]}
+     *</pre>
+     *
+     * The operations share one request context, so lookups are batched and memoized across all of them: a row
+     * that one operation has already looked up doesn't cause another query.  With parallel execution the
+     * operations' fields resolve concurrently.  The response has a result for each operation, in order, with
+     * its 'data' or its 'errors'; one failing operation doesn't fail the others.  The operations' costs count
+     * against one MaxQueryCost: once their total exceeds it, that operation and the rest aren't executed.
+     */
+    @RequiresPermission(ReadPermission.class)
+    public class BatchAction extends ApiAction<BatchForm>
+    {
+        @Override
+        public void validateForm(BatchForm form, Errors errors)
+        {
+            int count = form.getOperations().size();
+            if (count == 0)
+                errors.reject(ERROR_MSG, "At least one operation is required");
+            else if (count > MAX_BATCH_OPERATIONS)
+                errors.reject(ERROR_MSG, "A batch may have at most " + MAX_BATCH_OPERATIONS + " operations");
+        }
+
+        @Override
+        public Object execute(BatchForm form, BindException errors) throws Exception
+        {
+            GraphQLRequestContext ctx = new GraphQLRequestContext(getUser(), getContainer());
+            long maxCost = GraphQLManager.get().getQueryLimits(getContainer(), getUser()).getMaxCost();
+            long totalCost = 0;
+
+            // prepare each operation on the request thread, then execute them all before waiting for any
+            List<CompletableFuture<Map<String, Object>>> results = new ArrayList<>();
+            for (QForm operation : form.getOperations())
+            {
+                if (totalCost > maxCost)
+                {
+                    results.add(CompletableFuture.completedFuture(createErrorResult("Not executed: the batch's total cost exceeds the maximum cost of " + maxCost + ".")));
+                    continue;
+                }
+
+                PreparedQuery prepared;
+                BindException operationErrors = new BindException(operation, "operation");
+                try
+                {
+                    prepared = prepareQuery(operation, null, operationErrors);
+                }
+                catch (NotFoundException e)
+                {
+                    operationErrors.reject(ERROR_MSG, e.getMessage());
+                    prepared = null;
+                }
+
+                if (prepared == null)
+                {
+                    results.add(CompletableFuture.completedFuture(createErrorResult(operationErrors.getGlobalError().getDefaultMessage())));
+                    continue;
+                }
+                if (prepared._incremental != null)
+                {
+                    results.add(CompletableFuture.completedFuture(createErrorResult("@defer and @stream aren't supported in a batch")));
+                    continue;
+                }
+                totalCost += prepared._cost;
+                if (totalCost > maxCost)
+                {
+                    results.add(CompletableFuture.completedFuture(createErrorResult("Batch cost " + totalCost + " exceeds the maximum cost of " + maxCost + ".  Send fewer operations, or select fewer fields or rows in each.")));
+                    continue;
+                }
+
+                ExecutionInput input = ExecutionInput.newExecutionInput()
+                        .query(prepared._query)
+                        .variables(operation.getVariables() != null ? operation.getVariables() : Collections.emptyMap())
+                        .context(ctx)
+                        .build();
+
+                Map<String, Object> extensions = prepared._extensions;
+                results.add(prepared._graphQL.executeAsync(input).handle((result, t) -> {
+                    if (t != null)
+                        return createErrorResult(t.getMessage());
+                    if (!result.getErrors().isEmpty())
+                        return createErrorResult(result.getErrors().get(0).getMessage());
+
+                    Map<String, Object> ret = new LinkedHashMap<>();
+                    ret.put("data", result.getData());
+                    if (operation.isExtensions())
+                        ret.put("extensions", extensions);
+                    return ret;
+                }));
+            }
+
+            List<Map<String, Object>> ret = new ArrayList<>(results.size());
+            for (CompletableFuture<Map<String, Object>> result : results)
+                ret.add(result.join());
+
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("results", ret);
+            if (form.getJsonObject().optBoolean("extensions"))
+            {
+                Map<String, Object> lookups = new LinkedHashMap<>();
+                lookups.put("memoHits", ctx.getMemoHits());
+                lookups.put("savedQueries", ctx.getSavedQueries());
+                response.put("extensions", Collections.singletonMap("lookups", lookups));
+            }
+            return response;
+        }
+
+        private Map<String, Object> createErrorResult(String message)
+        {
+            Map<String, Object> ret = new LinkedHashMap<>();
+            ret.put("data", null);
+            ret.put("errors", Collections.singletonList(Collections.singletonMap("message", message)));
+            return ret;
+        }
+    }
+
+    public static class RegisterQueryForm
+    {
+        private String _name;
+        private String _q;
+        private String _schemaName;
+        private String _queryName;
+
+        public String getName()
+        {
+            return _name;
+        }
+
+        public void setName(String name)
+        {
+            _name = name;
+        }
+
+        public String getQ()
+        {
+            return _q;
+        }
+
+        public void setQ(String q)
+        {
+            _q = q;
+        }
+
+        public String getSchemaName()
+        {
+            return _schemaName;
+        }
+
+        public void setSchemaName(String schemaName)
+        {
+            _schemaName = schemaName;
+        }
+
+        public String getQueryName()
+        {
+            return _queryName;
+        }
+
+        public void setQueryName(String queryName)
+        {
+            _queryName = queryName;
+        }
+    }
+
+    /**
+     * Save a query so it can be executed with QueryAction by 'queryId' (RowId or SHA-256 hash) instead of sending the query text.
+     * If 'schemaName' and 'queryName' are provided, the query is validated against that table's GraphQL schema
+     * and the validated document is cached before it is saved.
+     */
+    @RequiresPermission(AdminPermission.class)
+    public class RegisterQueryAction extends ApiAction<RegisterQueryForm>
+    {
+        @Override
+        public void validateForm(RegisterQueryForm form, Errors errors)
+        {
+            if (StringUtils.isBlank(form.getQ()))
+                errors.reject(ERROR_MSG, "Query text 'q' is required");
+        }
+
+        @Override
+        public Object execute(RegisterQueryForm form, BindException errors) throws Exception
+        {
+            if (form.getSchemaName() != null || form.getQueryName() != null)
+            {
+                GraphQLSchema gqlSchema = getSchema(getUser(), getContainer(), form.getSchemaName(), form.getQueryName(), form.getQ());
+                PreparsedDocumentEntry entry = GraphQLDocumentCache.getDocument(gqlSchema, form.getQ());
+                if (entry.hasErrors())
+                {
+                    errors.reject(ERROR_MSG, entry.getErrors().get(0).getMessage());
+                    return null;
+                }
+            }
+
+            PersistedQuery pq = GraphQLManager.get().registerQuery(getContainer(), getUser(), form.getName(), form.getQ());
+
+            Map<String, Object> ret = new LinkedHashMap<>();
+            ret.put("queryId", pq.getRowId());
+            ret.put("hash", pq.getHash());
+            ret.put("name", pq.getName());
+            return success(ret);
+        }
+    }
+
+    @RequiresPermission(AdminPermission.class)
+    public class StatsAction extends ApiAction<Object>
+    {
+        @Override
+        public Object execute(Object o, BindException errors) throws Exception
+        {
+            Map<String, Object> documentCache = new LinkedHashMap<>();
+            documentCache.put("requests", GraphQLDocumentCache.getRequestCount());
+            documentCache.put("hits", GraphQLDocumentCache.getHitCount());
+            documentCache.put("misses", GraphQLDocumentCache.getMissCount());
+
+            Map<String, Object> schemaBuild = new LinkedHashMap<>();
+            schemaBuild.put("schemas", GraphQLTypeRegistry.getSchemasBuilt());
+            schemaBuild.put("millis", GraphQLTypeRegistry.getBuildMillis());
+            schemaBuild.put("typesCreated", GraphQLTypeRegistry.getTypesCreated());
+            schemaBuild.put("typesReused", GraphQLTypeRegistry.getTypesReused());
+
+            Map<String, Object> lookupMemo = new LinkedHashMap<>();
+            lookupMemo.put("hits", GraphQLRequestContext.getTotalMemoHits());
+            lookupMemo.put("savedQueries", GraphQLRequestContext.getTotalSavedQueries());
+
+            Map<String, Object> lookupCache = new LinkedHashMap<>();
+            lookupCache.put("requests", GraphQLLookupCache.getRequestCount());
+            lookupCache.put("hits", GraphQLLookupCache.getHitCount());
+            lookupCache.put("misses", GraphQLLookupCache.getMissCount());
+
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("documentCache", documentCache);
+            stats.put("schemaBuild", schemaBuild);
+            stats.put("lookupMemo", lookupMemo);
+            stats.put("lookupCache", lookupCache);
+            stats.put("resultCache", GraphQLResultCache.getStats());
+            stats.put("phases", GraphQLMetrics.getPhases());
+            stats.put("sql", GraphQLMetrics.getSql());
+            stats.put("hotFields", GraphQLMetrics.getHotFields(HOT_FIELDS));
+            return success(stats);
+        }
+    }
+
+    public static class BenchmarkForm
+    {
+        private String _schemaName;
+        private String _queryName;
+        private int _first = 100;
+        private int _depth = 3;
+        private int _warmup = 5;
+        private int _iterations = 20;
+
+        public String getSchemaName()
+        {
+            return _schemaName;
+        }
+
+        public void setSchemaName(String schemaName)
+        {
+            _schemaName = schemaName;
+        }
+
+        public String getQueryName()
+        {
+            return _queryName;
+        }
+
+        public void setQueryName(String queryName)
+        {
+            _queryName = queryName;
+        }
+
+        public int getFirst()
+        {
+            return _first;
+        }
+
+        public void setFirst(int first)
+        {
+            _first = first;
+        }
+
+        public int getDepth()
+        {
+            return _depth;
+        }
+
+        public void setDepth(int depth)
+        {
+            _depth = depth;
+        }
+
+        public int getWarmup()
+        {
+            return _warmup;
+        }
+
+        public void setWarmup(int warmup)
+        {
+            _warmup = warmup;
+        }
+
+        public int getIterations()
+        {
+            return _iterations;
+        }
+
+        public void setIterations(int iterations)
+        {
+            _iterations = iterations;
+        }
+    }
+
+    /**
+     * Run {@link GraphQLExecutionBenchmark} against a table: the module's schema build, and queries through its
+     * fetchers and loaders with their SQL statements per query.
+     */
+    @RequiresPermission(AdminPermission.class)
+    public class BenchmarkAction extends ApiAction<BenchmarkForm>
+    {
+        @Override
+        public void validateForm(BenchmarkForm form, Errors errors)
+        {
+            if (StringUtils.isBlank(form.getSchemaName()) || StringUtils.isBlank(form.getQueryName()))
+                errors.reject(ERROR_MSG, "schemaName and queryName are required");
+            if (form.getFirst() < 1 || form.getFirst() > 10000)
+                errors.reject(ERROR_MSG, "first must be between 1 and 10000");
+            if (form.getDepth() < 0 || form.getDepth() > 10)
+                errors.reject(ERROR_MSG, "depth must be between 0 and 10");
+            if (form.getWarmup() < 0 || form.getWarmup() > 1000)
+                errors.reject(ERROR_MSG, "warmup must be between 0 and 1000");
+            if (form.getIterations() < 1 || form.getIterations() > 1000)
+                errors.reject(ERROR_MSG, "iterations must be between 1 and 1000");
+        }
+
+        @Override
+        public Object execute(BenchmarkForm form, BindException errors) throws Exception
+        {
+            UserSchema schema = QueryService.get().getUserSchema(getUser(), getContainer(), form.getSchemaName());
+            if (schema == null)
+                throw new NotFoundException("schema: " + form.getSchemaName());
+            TableInfo table = schema.getTable(form.getQueryName());
+            if (table == null)
+                throw new NotFoundException("query: " + form.getQueryName());
+
+            GraphQLExecutionBenchmark benchmark = new GraphQLExecutionBenchmark(getUser(), getContainer(), table,
+                    form.getFirst(), form.getDepth(), form.getWarmup(), form.getIterations());
+            return success(benchmark.run());
+        }
+    }
+
+    // Get the GraphQL schema for the table or, without a queryName, for the tables of the schema that the query selects
+    private static GraphQLSchema getSchema(User user, Container container, String schemaName, @Nullable String queryName, @Nullable String query)
+    {
+        UserSchema schema = QueryService.get().getUserSchema(user, container, schemaName);
+        if (schema == null)
+            throw new NotFoundException("schema: " + schemaName);
+
+        if (StringUtils.isBlank(queryName))
+            return GraphQLSchemaCache.getSchema(schema, getRootTableNames(schema, query));
+
+        TableInfo table = schema.getTable(queryName);
+        if (table == null)
+            throw new NotFoundException("query: " + queryName);
+
+        return GraphQLSchemaCache.getSchema(table);
+    }
+
+    /**
+     * Get the names of the schema's tables selected as root fields by the query, so only those tables
+     * (and the tables they reach through lookups) are materialized as GraphQL types.
+     *
+     * @return the table names, or null if the query needs every table (e.g., an introspection query)
+     */
+    @Nullable
+    public static Set<String> getRootTableNames(UserSchema schema, @Nullable String query)
+    {
+        Set<String> fieldNames = query == null ? null : GraphQLSelection.getRootFieldNames(query);
+        if (fieldNames == null)
+            return null;
+
+        Map<String, String> tableNames = new CaseInsensitiveHashMap<>();
+        for (String tableName : schema.getTableNames())
+            tableNames.put(tableName, tableName);
+
+        Set<String> ret = new TreeSet<>();
+        for (String fieldName : fieldNames)
+        {
+            // "<Table>" selects a row by primary key, "<Table>List" selects a page of rows
+            if (tableNames.containsKey(fieldName))
+                ret.add(tableNames.get(fieldName));
+            else if (fieldName.endsWith("List") && tableNames.containsKey(fieldName.substring(0, fieldName.length() - "List".length())))
+                ret.add(tableNames.get(fieldName.substring(0, fieldName.length() - "List".length())));
+            // "insert<Table>", "update<Table>" and "delete<Table>" are mutations of the table
+            else if (GraphQLMutations.getTableName(fieldName) != null && tableNames.containsKey(GraphQLMutations.getTableName(fieldName)))
+                ret.add(tableNames.get(GraphQLMutations.getTableName(fieldName)));
+        }
+
+        // nothing we recognize -- let validation report the unknown fields against the whole schema
+        return ret.isEmpty() ? null : ret;
+    }
+
     public static GraphQLSchema createSchema(TableInfo table) //UserSchema schema)
     {
-        // create types for use in type references
-        Set<GraphQLType> types = new HashSet<>();
-
-        // CONSIDER: Add types for "Nameable" and "ExpObject", "ExpMaterial", ...
-
-        // Add "core__Users" table type to avoid issue with UserIdForeignKey exposing schema tables instead of query tables
-        final User user = table.getUserSchema().getUser();
-        final Container container = table.getUserSchema().getContainer();
-        final UserSchema coreSchema = QueryService.get().getUserSchema(user, container, "core");
-        final TableInfo usersTable = coreSchema.getTable("Users");
-        types.add(createObject(usersTable, "core__Users", types));
-
-        // Unlike the UserIdForeignKey, ContainerForeignKey works correctly with query tables
-//        types.add(newObject()
-//                .name("core__Containers")
-//                .field(newFieldDefinition()
-//                        .name("id")
-//                        .type(new GraphQLNonNull(GraphQLID))
-//                        .build()
-//                )
-//                .field(newFieldDefinition()
-//                        .name("name")
-//                        .type(new GraphQLNonNull(GraphQLString))
-//                        .build()
-//                )
-//                .build()
-//        );
-
-
-        types.add(newObject()
-                .name("link")
-                .field(newFieldDefinition()
-                        .name("rel")
-                        .type(GraphQLString)
-                        .build()
-                )
-                .field(newFieldDefinition()
-                        .name("href")
-                        .type(GraphQLString)
-                        .build()
-                )
-                .build()
-        );
+        try (GraphQLTypeRegistry.Builder types = GraphQLSchemaCache.getTypeRegistry(table.getUserSchema()).build())
+        {
+            GraphQLObjectType query = createQueryObject(table, types);
+
+            // the mutations return the same row type as the query's root field
+            GraphQLObjectType.Builder mutation = newObject()
+                    .name("Mutation");
+            boolean updatable = GraphQLMutations.addMutationFields(mutation, table, table.getName(), query.getFieldDefinition(table.getName()).getType());
+
+            return GraphQLSchema
+                    .newSchema()
+                    .query(query)
+                    .mutation(updatable ? mutation.build() : null)
+                    .build(getSchemaTypes(types));
+        }
+    }
+
+    /**
+     * Create a GraphQL schema with root fields for the tables of the UserSchema.  Object types are only created
+     * for the root tables and for lookup tables reached from them, and each is created once and shared by
+     * the root fields and every lookup that references it.
+     *
+     * @param tableNames the tables to expose, or null for every table in the schema
+     */
+    public static GraphQLSchema createSchema(UserSchema schema, @Nullable Collection<String> tableNames)
+    {
+        try (GraphQLTypeRegistry.Builder types = GraphQLSchemaCache.getTypeRegistry(schema).build())
+        {
+            GraphQLObjectType.Builder query = newObject()
+                    .name("Query")
+                    .description(schema.getDescription());
+            GraphQLObjectType.Builder mutation = newObject()
+                    .name("Mutation");
+
+            boolean empty = true;
+            boolean updatable = false;
+            for (String name : new TreeSet<>(tableNames != null ? tableNames : schema.getTableNames()))
+            {
+                // root field names must be valid GraphQL names
+                if (!GRAPHQL_NAME.matcher(name).matches())
+                    continue;
+
+                TableInfo table = schema.getTable(name);
+                if (table == null)
+                    continue;
+
+                // share the type with lookups into this table from elsewhere in the schema
+                String typeName = getTypeName(schema.getSchemaName(), table.getName());
+                GraphQLOutputType rowType = types.ensureType(typeName, () -> createObject(table, typeName, types));
+                addRootFields(query, table, rowType, types);
+                updatable |= GraphQLMutations.addMutationFields(mutation, table, typeName, rowType);
+                empty = false;
+            }
 
+            if (empty)
+                throw new NotFoundException("No tables in schema: " + schema.getSchemaName());
 
-        return GraphQLSchema
-                .newSchema()
-                .query(createQueryObject(table, types))
-                .build(types);
+            return GraphQLSchema
+                    .newSchema()
+                    .query(query.build())
+                    .mutation(updatable ? mutation.build() : null)
+                    .build(getSchemaTypes(types));
+        }
     }
 
-    public static GraphQLObjectType createQueryObject(TableInfo table, Set<GraphQLType> types)
+    // CONSIDER: Add types for "Nameable" and "ExpObject", "ExpMaterial", ...
+
+    // Unlike the UserIdForeignKey, ContainerForeignKey works correctly with query tables
+//    private static final GraphQLObjectType CONTAINER_TYPE = newObject()
+//            .name("core__Containers")
+//            .field(newFieldDefinition()
+//                    .name("id")
+//                    .type(new GraphQLNonNull(GraphQLID))
+//                    .build()
+//            )
+//            .field(newFieldDefinition()
+//                    .name("name")
+//                    .type(new GraphQLNonNull(GraphQLString))
+//                    .build()
+//            )
+//            .build();
+
+    // The table types reachable from the schema's root fields, plus the types they refer to by name
+    private static Set<GraphQLType> getSchemaTypes(GraphQLTypeRegistry.Builder types)
     {
-        return newObject()
-                .name("Query")
+        Set<GraphQLType> ret = new HashSet<>(types.getTypes());
+        ret.add(GraphQLLinks.getLinkType());
+        GraphQLConnection.addTypes(ret);
+        return ret;
+    }
+
+    public static GraphQLObjectType createQueryObject(TableInfo table, GraphQLTypeRegistry.Builder types)
+    {
+        GraphQLObjectType rowType = createObject(table, null, types);
+
+        GraphQLObjectType.Builder query = newObject()
+                .name("Query");
+        addRootFields(query, table, rowType, types);
+        return query.build();
+    }
 
+    // Add the "<Table>" field to select a row by primary key and the "<Table>List" field to select pages of rows
+    private static void addRootFields(GraphQLObjectType.Builder query, TableInfo table, GraphQLOutputType rowType, GraphQLTypeRegistry.Builder types)
+    {
+        query
                 .field(newFieldDefinition()
                         .name(table.getName())
-                        .type(createObject(table, null, types))
+                        .type(rowType)
                         .argument(table.getPkColumns().stream()
                                 .map(pkCol -> newArgument()
                                         .name(pkCol.getName())
@@ -394,9 +1232,6 @@ public class GraphQLController extends SpringActionController
                                 .collect(Collectors.toList())
                         )
 
-                        // TODO: Allow traditional LabKey query filters
-//                        .argument(createQueryFilterArgument())
-
                         // TODO: Consider adding altKeys as parameters
 //                        .argument(table.getAlternateKeyColumns().stream()
 //                                .map(altCol -> newArgument()
@@ -407,7 +1242,10 @@ public class GraphQLController extends SpringActionController
 //                                )
 //                                .collect(Collectors.toList())
 //                        )
-                        .dataFetcher(env -> {
+                        .dataFetcher(GraphQLExecutor.async(env -> {
+                            GraphQLRequestContext ctx = GraphQLRequestContext.get(env);
+                            TableInfo t = ctx != null ? ctx.getTable(table) : table;
+
                             SimpleFilter filter = new SimpleFilter();
                             for (String name : table.getPkColumnNames())
                             {
@@ -415,76 +1253,50 @@ public class GraphQLController extends SpringActionController
                                 filter.addCondition(name, val);
                             }
 
-                            Map<String, Object> ret = new TableSelector(table, TableSelector.ALL_COLUMNS, filter, null).getMap();
-                            return ret;
-                        })
+                            if (ctx == null)
+                            {
+                                long start = System.nanoTime();
+                                Map<String, Object> row = new TableSelector(t, TableSelector.ALL_COLUMNS, filter, null).getMap();
+                                GraphQLInstrumentation.recordSql(GraphQLTrace.describe(t, null, filter, null), row != null ? 1 : 0, start);
+                                return row;
+                            }
+
+                            // only select the columns needed for the requested fields, joining in the selected lookups
+                            List<Map<String, Object>> rows = GraphQLQueryPlan.create(ctx, t, env).select(filter, null);
+                            return rows.isEmpty() ? null : rows.get(0);
+                        }))
                         .build()
                 )
-                .build()
+
                 ;
-    }
 
-//    public static GraphQLArgument createQueryFilterArgument()
-//    {
-//
-//    }
+        // list of rows with LabKey filters, sort, and cursor paging, unless another table already has its names
+        if (GraphQLConnection.canCreateListField(table))
+            query.field(GraphQLConnection.createListField(table, rowType));
+    }
 
-    public static GraphQLObjectType createObject(TableInfo table, String nameOverride, Set<GraphQLType> types)
+    public static GraphQLObjectType createObject(TableInfo table, String nameOverride, GraphQLTypeRegistry.Builder types)
     {
+        // lookup tables may be in other containers; their changes must drop this schema too
+        types.addContainer(table.getUserSchema() != null ? table.getUserSchema().getContainer() : null);
         return newObject()
                 .name(nameOverride == null ? table.getName() : nameOverride)
                 //.withInterface(typeRef("HasLinks"))
                 .description(table.getDescription())
                 .fields(createFields(table.getColumns(), types))
-                .field(createLinksField(table))
-                .build();
-    }
-
-    public static GraphQLFieldDefinition createLinksField(TableInfo table)
-    {
-        return newFieldDefinition()
-                .name("links")
-                .type(new GraphQLList(new GraphQLNonNull(new GraphQLTypeReference("link"))))
-                .dataFetcher(environment -> {
-                    Object source = environment.getSource();
-                    if (!(source instanceof Map))
-                        return null;
-
-                    Map<String, Object> row = (Map<String, Object>)source;
-
-                    ArrayList<Map<String, Object>> links = new ArrayList<>();
-
-                    // detailsURL
-                    StringExpression detailsUrl = table.getDetailsURL(null, null);
-                    if (detailsUrl != null && detailsUrl != AbstractTableInfo.LINK_DISABLER)
-                    {
-                        String href = detailsUrl.eval(row);
-                        links.add(CaseInsensitiveHashMap.of("rel", "details", "href", href));
-                    }
-
-                    // TODO: Doesn't render default update links if table is insertable
-                    // updateURL
-                    StringExpression updateUrl = table.getUpdateURL(null, null);
-                    if (updateUrl != null && updateUrl != AbstractTableInfo.LINK_DISABLER)
-                    {
-                        String href = updateUrl.eval(row);
-                        links.add(CaseInsensitiveHashMap.of("rel", "update", "href", href));
-                    }
-
-                    return links;
-                })
+                .field(GraphQLLinks.createLinksField(table))
                 .build();
     }
 
     // TODO: look into using GraphqlFieldVisibility to hide restricted fields
-    public static List<GraphQLFieldDefinition> createFields(List<ColumnInfo> columns, Set<GraphQLType> types)
+    public static List<GraphQLFieldDefinition> createFields(List<ColumnInfo> columns, GraphQLTypeRegistry.Builder types)
     {
         return columns.stream()
                 .map(col -> GraphQLController.createField(col, types))
                 .collect(Collectors.toList());
     }
 
-    public static GraphQLFieldDefinition createField(ColumnInfo column, Set<GraphQLType> types)
+    public static GraphQLFieldDefinition createField(ColumnInfo column, GraphQLTypeRegistry.Builder types)
     {
         return newFieldDefinition()
                 .name(column.getName())
@@ -494,11 +1306,10 @@ public class GraphQLController extends SpringActionController
                 .build();
     }
 
-    public static GraphQLOutputType type(ColumnInfo column, Set<GraphQLType> types)
+    // The scalar type for the column's values
+    public static GraphQLScalarType scalarType(ColumnInfo column)
     {
-        // TODO: Use GraphQLTypeReference for self-references
-
-        GraphQLOutputType type;
+        GraphQLScalarType type;
 
         JdbcType jdbcType = column.getJdbcType();
         switch (jdbcType)
@@ -552,6 +1363,13 @@ public class GraphQLController extends SpringActionController
         if (type == null)
             type = GraphQLString;
 
+        return type;
+    }
+
+    public static GraphQLOutputType type(ColumnInfo column, GraphQLTypeRegistry.Builder types)
+    {
+        GraphQLOutputType type = scalarType(column);
+
         boolean required = column.isRequired();
         if (required)
             type = new GraphQLNonNull(type);
@@ -570,13 +1388,16 @@ public class GraphQLController extends SpringActionController
 //            }
             else if (fk instanceof UserIdForeignKey)
             {
-                type = typeRef("core__Users");
+                // UserIdForeignKey exposes the schema table instead of the query table, so use core.Users from the column's UserSchema
+                GraphQLOutputType usersType = ensureUsersType(column, types);
+                if (usersType != null)
+                    type = usersType;
             }
             else
             {
-                GraphQLType fkType = ensureType(fk, types);
+                GraphQLOutputType fkType = ensureType(fk, types);
                 if (fkType != null)
-                    type = typeRef(fkType.getName());
+                    type = fkType;
             }
         }
 
@@ -587,67 +1408,82 @@ public class GraphQLController extends SpringActionController
         return type;
     }
 
-    public static GraphQLInputType intype(ColumnInfo column, Set<GraphQLType> types)
+    public static GraphQLInputType intype(ColumnInfo column, GraphQLTypeRegistry.Builder types)
     {
         assert column.isKeyField();
         GraphQLOutputType outtype = type(column, types);
         return (GraphQLInputType)outtype;
     }
 
-    // Create the GraphQLType for the foreign key if it hasn't yet been added to the types collection
+    // Get a reference to the GraphQLType for the foreign key, creating the type if it isn't in the registry yet
     // Type names follow the pattern "<schema_name>__<query_name>":  e.g. exp.data.Construct becomes exp_data__Construct
-    public static GraphQLType ensureType(ForeignKey fk, Set<GraphQLType> types)
+    @Nullable
+    public static GraphQLOutputType ensureType(ForeignKey fk, GraphQLTypeRegistry.Builder types)
     {
         // Only create GraphQLType for lookups in the public schema
         if (fk.getLookupSchemaName() == null || fk.getLookupTableName() == null)
             return null;
 
-        String typeName = fk.getLookupSchemaName().replace(".", "_") + "__" + fk.getLookupTableName();
-
-        GraphQLType fkType = findType(typeName, types);
-        if (fkType == null)
-        {
+        String typeName = getTypeName(fk.getLookupSchemaName(), fk.getLookupTableName());
+        return types.ensureType(typeName, () -> {
             TableInfo lookupTable = fk.getLookupTableInfo();
-            if (lookupTable == null)
-                return null;
+            return lookupTable != null ? createObject(lookupTable, typeName, types) : null;
+        });
+    }
 
-            // Add a temporary type reference avoid type recursion going to infinity
-            GraphQLType temp = new GraphQLTypeReference(typeName);
-            types.add(temp);
-            fkType = createObject(fk.getLookupTableInfo(), typeName, types);
-            types.add(fkType);
-            types.remove(temp);
-        }
+    // Get a reference to the "core__Users" type, creating it the first time a UserIdForeignKey column is seen
+    @Nullable
+    private static GraphQLOutputType ensureUsersType(ColumnInfo column, GraphQLTypeRegistry.Builder types)
+    {
+        UserSchema schema = column.getParentTable() != null ? column.getParentTable().getUserSchema() : null;
+        if (schema == null)
+            return null;
 
-        return fkType;
+        return types.ensureType("core__Users", () -> {
+            UserSchema coreSchema = QueryService.get().getUserSchema(schema.getUser(), schema.getContainer(), "core");
+            TableInfo usersTable = coreSchema != null ? coreSchema.getTable("Users") : null;
+            return usersTable != null ? createObject(usersTable, "core__Users", types) : null;
+        });
     }
 
-    public static GraphQLType findType(String typeName, Set<GraphQLType> types)
+    public static String getTypeName(String schemaName, String queryName)
     {
-        for (GraphQLType type : types)
-        {
-            if (typeName.equals(type.getName()))
-                return type;
-        }
-
-        return null;
+        return schemaName.replace(".", "_") + "__" + queryName;
     }
 
     public static DataFetcher dataFetcher(ColumnInfo column)
     {
         final ForeignKey fk = column.getFk();
         if (fk == null || fk instanceof RowIdForeignKey)
-            return PropertyDataFetcher.fetching(column.getName()); // getFieldKey() ?
+            return GraphQLRow.fetcher(column.getName()); // getFieldKey() ?
 
         //TODO: column.getDefaultValue()
 
+        // lookups that weren't joined into the parent's query need another query, which may run on the request's executor
+        DataFetcher lookupFetcher = GraphQLExecutor.async(lookupFetcher(column, fk));
+
         return env -> {
             Map<String, Object> row = (Map<String, Object>)env.getSource();
-            Object value = row.get(column.getName());
-            if (value == null)
+            if (row.get(column.getName()) == null)
                 return null;
 
-            //Container lookupContainer = fk.getLookupContainer()
+            // lookup already joined into the parent's query by GraphQLQueryPlan
+            String lookupKey = GraphQLQueryPlan.getLookupKey(column.getName());
+            if (row.containsKey(lookupKey))
+                return row.get(lookupKey);
+
+            return lookupFetcher.get(env);
+        };
+    }
+
+    private static DataFetcher lookupFetcher(ColumnInfo column, ForeignKey fk)
+    {
+        return env -> {
+            Map<String, Object> row = (Map<String, Object>)env.getSource();
+            Object value = row.get(column.getName());
+
+            GraphQLRequestContext ctx = GraphQLRequestContext.get(env);
+
             if (fk instanceof MultiValuedForeignKey)
             {
                 // TODO: need a flag or something to indicate we want to select a map versus just a lookup value
@@ -655,49 +1491,73 @@ public class GraphQLController extends SpringActionController
                 if (column.getName().equalsIgnoreCase("Alias"))
                     selectValueColumn = "~~title~~";
 
-                return createMultiValuedFetcher(column, (MultiValuedForeignKey)fk, value, selectValueColumn);
+                MultiValuedForeignKey mvfk = (MultiValuedForeignKey)fk;
+                if (ctx == null)
+                    return createMultiValuedFetcher(null, column, mvfk, value, selectValueColumn);
+
+                return load(ctx, ctx.getMultiValuedLoader(column, mvfk, selectValueColumn), Collections.singletonList(column), column, row, value);
             }
             else
             {
-                TableInfo lookupTable = fk.getLookupTableInfo();
+                TableInfo lookupTable = ctx != null ? ctx.getLookupTable(fk) : fk.getLookupTableInfo();
+                if (lookupTable == null)
+                    return null;
+
                 ColumnInfo lookupColumn = lookupTable.getColumn(fk.getLookupColumnName());
 
-                TableSelector ts = new TableSelector(lookupTable, new SimpleFilter(lookupColumn.getName(), value), null);
-                return ts.getMap();
+                if (ctx == null)
+                {
+                    long start = System.nanoTime();
+                    SimpleFilter filter = new SimpleFilter(lookupColumn.getName(), value);
+                    TableSelector ts = new TableSelector(lookupTable, filter, null);
+                    Map<String, Object> lookupRow = ts.getMap();
+                    GraphQLInstrumentation.recordSql(GraphQLTrace.describe(lookupTable, null, filter, null), lookupRow != null ? 1 : 0, start);
+                    return lookupRow;
+                }
+
+                // one loader, and one query per batch, for all the selected lookups of the rows into this table
+                GraphQLRequestContext.LookupGroup group = ctx.getLookupGroup(ctx.getSiblings(row), column, lookupTable, lookupColumn, env);
+                DataLoader<Object, Map<String, Object>> loader = ctx.getLookupLoader(lookupTable, lookupColumn, group.getColumns(), group.getSelected());
+                return load(ctx, loader, group.getFkColumns(), column, row, value);
             }
         };
     }
 
-    public static Object createMultiValuedFetcher(@NotNull ColumnInfo column, @NotNull MultiValuedForeignKey mvfk, @NotNull Object value, @Nullable String selectValueColumn)
+    // Queue the lookup keys of all rows fetched along with this one, for each of the columns loaded together, so they are
+    // resolved together by the request's DataLoader
+    private static <V> CompletableFuture<V> load(
+            @NotNull GraphQLRequestContext ctx, @NotNull DataLoader<Object, V> loader, @NotNull List<ColumnInfo> columns,
+            @NotNull ColumnInfo column, @NotNull Map<String, Object> row, @NotNull Object value)
     {
-        String junctionLookupColumn = mvfk.getJunctionLookup(); // column on junctionTable that has an FK to the value table
-        String junctionKey = mvfk.getLookupColumnName();
-
-        TableInfo valueTable = mvfk.getLookupTableInfo(); // far right table
-
-        TableInfo junctionTable = mvfk.getSourceFk().getLookupTableInfo(); // junction table in the middle
-        ColumnInfo junctCol = junctionTable.getColumn(junctionLookupColumn);
-        ForeignKey valueFk = junctCol.getFk();
+        CompletableFuture<V> ret;
 
-        if ("~~title~~".equals(selectValueColumn))
-            selectValueColumn = valueTable.getTitleColumn();
+        // queue the whole group at once so a concurrent dispatch can't split it into several batches
+        synchronized (loader)
+        {
+            List<Map<String, Object>> siblings = ctx.getSiblings(row);
+            for (ColumnInfo col : columns)
+            {
+                if (!ctx.markQueued(col, siblings))
+                    continue;
+                for (Map<String, Object> sibling : siblings)
+                {
+                    Object key = sibling.get(col.getName());
+                    if (key != null)
+                        loader.load(GraphQLLookupLoader.normalizeKey(key));
+                }
+            }
 
-        SQLFragment frag = new SQLFragment("SELECT");
-        if (selectValueColumn != null)
-            frag.append(" v.").append(selectValueColumn);
-        else
-            frag.append(" v.* ");
-        frag.append(" FROM ").append(valueTable, "v")
-                .append(" INNER JOIN ").append( junctionTable, "j")
-                .append(" ON v.").append(valueFk.getLookupColumnName()).append(" = ").append(junctionLookupColumn)
-                .append(" WHERE j.").append( junctionKey).append( " = ?").add(value);
+            ret = loader.load(GraphQLLookupLoader.normalizeKey(value));
+        }
 
-        SqlSelector ss = new SqlSelector(valueTable.getSchema(), frag);
+        loader.dispatch();
+        return ret;
+    }
 
-        if (selectValueColumn != null)
-            return ss.getCollection(column.getJavaClass());
-        else
-            return ss.getMapCollection();
+    public static Object createMultiValuedFetcher(@Nullable GraphQLRequestContext ctx, @NotNull ColumnInfo column, @NotNull MultiValuedForeignKey mvfk, @NotNull Object value, @Nullable String selectValueColumn)
+    {
+        GraphQLMultiValuedLoader loader = new GraphQLMultiValuedLoader(ctx, column, mvfk, selectValueColumn);
+        return loader.select(Collections.singletonList(value)).get(0);
     }
 
 }
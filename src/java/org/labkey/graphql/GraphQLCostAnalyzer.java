@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.language.Argument;
+import graphql.language.ArrayValue;
+import graphql.language.Definition;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
+import graphql.language.FragmentSpread;
+import graphql.language.InlineFragment;
+import graphql.language.IntValue;
+import graphql.language.ObjectField;
+import graphql.language.ObjectValue;
+import graphql.language.OperationDefinition;
+import graphql.language.Selection;
+import graphql.language.SelectionSet;
+import graphql.language.Value;
+import graphql.language.VariableReference;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLFieldsContainer;
+import graphql.schema.GraphQLList;
+import graphql.schema.GraphQLModifiedType;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates the cost of a validated query document before it is executed, so queries that would fan out into
+ * too many lookups can be rejected before any SQL runs.
+ *
+ * Each scalar field costs 1 and each object field (a lookup or a root row) costs 1 plus its sub-fields.
+ * A list field (a multi-valued lookup, or the rows of a list root field) multiplies the cost of its
+ * sub-fields by the number of rows it's expected to return: the 'first' argument of a list root field,
+ * or {@link #LIST_FACTOR} for multi-valued lookups.  Depth counts nested lookups; the nodes/edges
+ * wrappers of a list root field don't add to it.
+ *
+ * A streamed list field (see {@link GraphQLStreamWriter}) writes every page up to 'first', so it's costed with
+ * 'first' as given rather than capped at a page, and without 'first' it's unbounded and over any limit.
+ *
+ * A multi-valued column of scalars is a list too, costing {@link #LIST_FACTOR}.  A mutation field costs 1 for each
+ * value of each row (or key) it's given, and its returned rows are costed by the number of rows given rather than
+ * by LIST_FACTOR.
+ */
+public class GraphQLCostAnalyzer
+{
+    /** Expected number of values of a multi-valued lookup. */
+    public static final int LIST_FACTOR = 10;
+
+    private final GraphQLSchema _schema;
+    private final Map<String, FragmentDefinition> _fragments = new HashMap<>();
+    private final Map<String, Object> _variables;
+    private final boolean _stream;
+    private boolean _unbounded;
+
+    /** The computed cost and depth of a query. */
+    public static class Cost
+    {
+        private final long _cost;
+        private final int _depth;
+        private final boolean _unbounded;
+
+        Cost(long cost, int depth)
+        {
+            this(cost, depth, false);
+        }
+
+        Cost(long cost, int depth, boolean unbounded)
+        {
+            _cost = cost;
+            _depth = depth;
+            _unbounded = unbounded;
+        }
+
+        public long getCost()
+        {
+            return _cost;
+        }
+
+        public int getDepth()
+        {
+            return _depth;
+        }
+
+        /** True if the query streams a list field without 'first'. */
+        public boolean isUnbounded()
+        {
+            return _unbounded;
+        }
+    }
+
+    /** The largest query a user may execute. */
+    public static class Limits
+    {
+        private final int _maxDepth;
+        private final long _maxCost;
+
+        public Limits(int maxDepth, long maxCost)
+        {
+            _maxDepth = maxDepth;
+            _maxCost = maxCost;
+        }
+
+        public int getMaxDepth()
+        {
+            return _maxDepth;
+        }
+
+        public long getMaxCost()
+        {
+            return _maxCost;
+        }
+
+        /**
+         * @return a message describing why the query is over the limits, or null if it's within them
+         */
+        @Nullable
+        public String check(@NotNull Cost cost)
+        {
+            if (cost.isUnbounded())
+                return "A streamed list field must set 'first' to bound the number of rows it returns.";
+            if (cost.getDepth() > _maxDepth)
+                return "Query depth " + cost.getDepth() + " exceeds the maximum depth of " + _maxDepth + ".  Select fewer nested lookups.";
+            if (cost.getCost() > _maxCost)
+                return "Query cost " + cost.getCost() + " exceeds the maximum cost of " + _maxCost + ".  Select fewer fields or lookups, or request smaller pages with 'first'.";
+            return null;
+        }
+
+        public Map<String, Object> toMap(@NotNull Cost cost)
+        {
+            Map<String, Object> ret = new LinkedHashMap<>();
+            ret.put("cost", cost.getCost());
+            ret.put("depth", cost.getDepth());
+            ret.put("maxCost", _maxCost);
+            ret.put("maxDepth", _maxDepth);
+            return ret;
+        }
+    }
+
+    private GraphQLCostAnalyzer(GraphQLSchema schema, Document document, Map<String, Object> variables, boolean stream)
+    {
+        _schema = schema;
+        _variables = variables;
+        _stream = stream;
+        for (Definition definition : document.getDefinitions())
+        {
+            if (definition instanceof FragmentDefinition)
+                _fragments.put(((FragmentDefinition)definition).getName(), (FragmentDefinition)definition);
+        }
+    }
+
+    /**
+     * Compute the cost of the document, which must be valid for the schema.
+     * If the document has several operations the most expensive one is reported.
+     *
+     * @param stream true if the query's list field is streamed
+     */
+    public static Cost analyze(@NotNull GraphQLSchema schema, @NotNull Document document, @Nullable Map<String, Object> variables, boolean stream)
+    {
+        GraphQLCostAnalyzer analyzer = new GraphQLCostAnalyzer(schema, document, variables != null ? variables : Collections.emptyMap(), stream);
+
+        long cost = 0;
+        int depth = 0;
+        for (Definition definition : document.getDefinitions())
+        {
+            if (!(definition instanceof OperationDefinition))
+                continue;
+
+            OperationDefinition operation = (OperationDefinition)definition;
+            GraphQLFieldsContainer root = operation.getOperation() == OperationDefinition.Operation.MUTATION ? schema.getMutationType() : schema.getQueryType();
+            if (root == null)
+                continue;
+
+            Cost opCost = analyzer.selectionCost(operation.getSelectionSet(), root, LIST_FACTOR, 0);
+            cost = Math.max(cost, opCost.getCost());
+            depth = Math.max(depth, opCost.getDepth());
+        }
+
+        return new Cost(cost, depth, analyzer._unbounded);
+    }
+
+    // Total cost and maximum depth of the fields in the selection set
+    private Cost selectionCost(@Nullable SelectionSet selectionSet, GraphQLFieldsContainer parentType, long listFactor, int depth)
+    {
+        if (selectionSet == null)
+            return new Cost(0, depth);
+
+        long cost = 0;
+        int maxDepth = depth;
+        for (Selection selection : selectionSet.getSelections())
+        {
+            Cost selectionCost;
+            if (selection instanceof Field)
+                selectionCost = fieldCost((Field)selection, parentType, listFactor, depth);
+            else if (selection instanceof InlineFragment)
+            {
+                InlineFragment fragment = (InlineFragment)selection;
+                String typeName = fragment.getTypeCondition() != null ? fragment.getTypeCondition().getName() : null;
+                selectionCost = selectionCost(fragment.getSelectionSet(), getType(typeName, parentType), listFactor, depth);
+            }
+            else if (selection instanceof FragmentSpread)
+            {
+                FragmentDefinition fragment = _fragments.get(((FragmentSpread)selection).getName());
+                if (fragment == null)
+                    continue;
+                selectionCost = selectionCost(fragment.getSelectionSet(), getType(fragment.getTypeCondition().getName(), parentType), listFactor, depth);
+            }
+            else
+                continue;
+
+            cost = saturatedAdd(cost, selectionCost.getCost());
+            maxDepth = Math.max(maxDepth, selectionCost.getDepth());
+        }
+
+        return new Cost(cost, maxDepth);
+    }
+
+    private Cost fieldCost(Field field, GraphQLFieldsContainer parentType, long listFactor, int depth)
+    {
+        GraphQLFieldDefinition fieldDef = parentType.getFieldDefinition(field.getName());
+        if (fieldDef == null)
+            return new Cost(0, depth); // e.g., __typename
+
+        boolean list = false;
+        GraphQLType type = fieldDef.getType();
+        while (type instanceof GraphQLModifiedType)
+        {
+            if (type instanceof GraphQLList)
+                list = true;
+            type = ((GraphQLModifiedType)type).getWrappedType();
+        }
+
+        // a multi-valued column of scalars returns a value for each of its values
+        if (!(type instanceof GraphQLFieldsContainer))
+            return new Cost(list ? listFactor : 1, depth);
+
+        GraphQLFieldsContainer fieldType = (GraphQLFieldsContainer)type;
+
+        // the links of a row are computed from the row itself
+        if (GraphQLLinks.LINK_TYPE_NAME.equals(fieldType.getName()))
+            return new Cost(1, depth);
+
+        // the nodes and edges of a list root field return up to 'first' rows, and don't count as another level
+        boolean connection = parentType.getName().endsWith("Connection") || parentType.getName().endsWith("Edge");
+        long childFactor = LIST_FACTOR;
+        if (fieldDef.getArgument("first") != null)
+        {
+            Long first = getFirst(field);
+            if (_stream)
+            {
+                if (first == null)
+                    _unbounded = true;
+                childFactor = first != null ? Math.max(0, first) : Long.MAX_VALUE;
+            }
+            else
+                childFactor = first != null ? Math.max(0, Math.min(first, GraphQLConnection.MAX_PAGE_SIZE)) : GraphQLConnection.DEFAULT_PAGE_SIZE;
+        }
+
+        // the rows given to a mutation are written, and returned, one by one
+        long inputCost = 0;
+        if (parentType == _schema.getMutationType())
+        {
+            long inputRows = 0;
+            for (Argument argument : field.getArguments())
+            {
+                Object value = resolve(argument.getValue());
+                if (value instanceof List)
+                {
+                    inputRows = saturatedAdd(inputRows, ((List)value).size());
+                    for (Object row : (List)value)
+                        inputCost = saturatedAdd(inputCost, valueCount(row));
+                }
+            }
+            listFactor = Math.max(1, inputRows);
+        }
+
+        Cost children = selectionCost(field.getSelectionSet(), fieldType, childFactor, connection ? depth : depth + 1);
+        long cost = saturatedAdd(1, children.getCost());
+        if (list)
+            cost = saturatedMultiply(cost, listFactor);
+
+        return new Cost(saturatedAdd(cost, inputCost), children.getDepth());
+    }
+
+    // The argument value with variables replaced by their values: ArrayValues become Lists and ObjectValues Maps
+    @Nullable
+    private Object resolve(@Nullable Object value)
+    {
+        if (value instanceof VariableReference)
+            return _variables.get(((VariableReference)value).getName());
+        if (value instanceof ArrayValue)
+        {
+            List<Object> ret = new ArrayList<>();
+            for (Value element : ((ArrayValue)value).getValues())
+                ret.add(resolve(element));
+            return ret;
+        }
+        if (value instanceof ObjectValue)
+        {
+            Map<String, Object> ret = new LinkedHashMap<>();
+            for (ObjectField objectField : ((ObjectValue)value).getObjectFields())
+                ret.put(objectField.getName(), resolve(objectField.getValue()));
+            return ret;
+        }
+        return value;
+    }
+
+    // Number of values in an input row (at least 1)
+    private static long valueCount(@Nullable Object row)
+    {
+        return row instanceof Map ? Math.max(1, ((Map)row).size()) : 1;
+    }
+
+    // The value of the field's 'first' argument, if it has one
+    @Nullable
+    private Long getFirst(Field field)
+    {
+        for (Argument argument : field.getArguments())
+        {
+            if (!"first".equals(argument.getName()))
+                continue;
+
+            Value value = argument.getValue();
+            if (value instanceof IntValue)
+                return ((IntValue)value).getValue().longValue();
+            if (value instanceof VariableReference)
+            {
+                Object v = _variables.get(((VariableReference)value).getName());
+                if (v instanceof Number)
+                    return ((Number)v).longValue();
+            }
+        }
+        return null;
+    }
+
+    private GraphQLFieldsContainer getType(@Nullable String name, GraphQLFieldsContainer defaultType)
+    {
+        GraphQLType type = name == null ? null : _schema.getType(name);
+        return type instanceof GraphQLFieldsContainer ? (GraphQLFieldsContainer)type : defaultType;
+    }
+
+    private static long saturatedAdd(long a, long b)
+    {
+        long r = a + b;
+        return r < 0 ? Long.MAX_VALUE : r;
+    }
+
+    private static long saturatedMultiply(long a, long b)
+    {
+        if (a != 0 && b > Long.MAX_VALUE / a)
+            return Long.MAX_VALUE;
+        return a * b;
+    }
+}
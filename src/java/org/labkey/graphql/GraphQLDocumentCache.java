@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.InvalidSyntaxError;
+import graphql.execution.preparsed.PreparsedDocumentEntry;
+import graphql.execution.preparsed.PreparsedDocumentProvider;
+import graphql.language.Document;
+import graphql.language.SourceLocation;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLSchema;
+import graphql.validation.ValidationError;
+import graphql.validation.Validator;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jetbrains.annotations.NotNull;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.cache.StringKeyCache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches parsed and validated query documents so repeated query strings skip the
+ * ANTLR parse and the validation rules.  Validation depends on the schema, so entries are
+ * keyed by the schema's identity and the SHA-256 hash of the query text.
+ */
+public class GraphQLDocumentCache
+{
+    private static final StringKeyCache<PreparsedDocumentEntry> DOCUMENT_CACHE = CacheManager.getStringKeyCache(5000, CacheManager.DAY, "GraphQL documents");
+
+    // GraphQLSchema doesn't override equals/hashCode, so this is effectively an identity map
+    private static final Map<GraphQLSchema, String> SCHEMA_IDS = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final AtomicLong SCHEMA_COUNTER = new AtomicLong();
+
+    private static final AtomicLong REQUESTS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private GraphQLDocumentCache()
+    {
+    }
+
+    /**
+     * Get a PreparsedDocumentProvider for use with GraphQL.newGraphQL(schema).preparsedDocumentProvider().
+     * The provider must only be used with the schema it was created for.
+     */
+    public static PreparsedDocumentProvider getProvider(@NotNull GraphQLSchema schema)
+    {
+        return (query, computeFunction) -> getDocument(schema, query);
+    }
+
+    @NotNull
+    public static PreparsedDocumentEntry getDocument(@NotNull GraphQLSchema schema, @NotNull String query)
+    {
+        REQUESTS.incrementAndGet();
+        String key = getSchemaId(schema) + ":" + hash(query);
+        return DOCUMENT_CACHE.get(key, null, (k, argument) -> {
+            MISSES.incrementAndGet();
+            return parseAndValidate(schema, query);
+        });
+    }
+
+    public static String hash(@NotNull String query)
+    {
+        return DigestUtils.sha256Hex(query);
+    }
+
+    private static String getSchemaId(GraphQLSchema schema)
+    {
+        return SCHEMA_IDS.computeIfAbsent(schema, s -> String.valueOf(SCHEMA_COUNTER.incrementAndGet()));
+    }
+
+    private static PreparsedDocumentEntry parseAndValidate(GraphQLSchema schema, String query)
+    {
+        long start = System.nanoTime();
+        Document document;
+        try
+        {
+            document = new Parser().parseDocument(query);
+        }
+        catch (ParseCancellationException e)
+        {
+            SourceLocation location = null;
+            if (e.getCause() instanceof RecognitionException)
+            {
+                Token token = ((RecognitionException)e.getCause()).getOffendingToken();
+                if (token != null)
+                    location = new SourceLocation(token.getLine(), token.getCharPositionInLine());
+            }
+            return new PreparsedDocumentEntry(new InvalidSyntaxError(location, e.getMessage()));
+        }
+        finally
+        {
+            GraphQLMetrics.recordPhase(GraphQLMetrics.PARSE, System.nanoTime() - start);
+        }
+
+        start = System.nanoTime();
+        List<ValidationError> errors = new Validator().validateDocument(schema, document);
+        GraphQLMetrics.recordPhase(GraphQLMetrics.VALIDATE, System.nanoTime() - start);
+        if (!errors.isEmpty())
+            return new PreparsedDocumentEntry(errors);
+
+        return new PreparsedDocumentEntry(document);
+    }
+
+    public static long getRequestCount()
+    {
+        return REQUESTS.get();
+    }
+
+    public static long getHitCount()
+    {
+        return REQUESTS.get() - MISSES.get();
+    }
+
+    public static long getMissCount()
+    {
+        return MISSES.get();
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.cache.StringKeyCache;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.query.QueryService;
+import org.labkey.api.query.UserSchema;
+import org.labkey.api.security.User;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Entity tags for conditional GET of query results.  The same tags validate {@link GraphQLResultCache} entries.
+ *
+ * The tables a query reads are only known once it has executed, so the first GET of a query records them
+ * (see {@link GraphQLRequestContext#getTablesRead}) and later GETs compute a validator from their current state
+ * before executing.  A table's state is its version as changed through this module (see
+ * {@link GraphQLResultCache#getTableVersion}) and, for tables not watched by a listener, the row count and
+ * latest "Modified" value selected for the user.  Tables without a Modified column, whose changes can't be
+ * observed, don't get a validator, so those queries are always executed.
+ *
+ * That state is selected over the whole table the user can see, once for each table the query reads, on every
+ * conditional GET; it costs about as much as a count of the table.  For large tables this can approach the cost of
+ * the query itself, so conditional GET is off unless the folder's ConditionalGet property is set, and the
+ * result cache, which checks it on every hit, unless ResultCache is.
+ */
+public class GraphQLETag
+{
+    private static final StringKeyCache<List<TableRef>> DEPENDENCIES = CacheManager.getStringKeyCache(5000, CacheManager.HOUR, "GraphQL query dependencies");
+
+    // versions from GraphQLResultCache start over on restart, so tags from a previous run never match
+    private static final String EPOCH = String.valueOf(System.currentTimeMillis());
+
+    private static final String MODIFIED = "Modified";
+
+    private GraphQLETag()
+    {
+    }
+
+    private static class TableRef
+    {
+        final String _containerId;
+        final String _schemaName;
+        final String _tableName;
+
+        TableRef(String containerId, String schemaName, String tableName)
+        {
+            _containerId = containerId;
+            _schemaName = schemaName;
+            _tableName = tableName;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof TableRef))
+                return false;
+            TableRef other = (TableRef)o;
+            return _containerId.equals(other._containerId) && _schemaName.equalsIgnoreCase(other._schemaName) && _tableName.equalsIgnoreCase(other._tableName);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(_containerId, _schemaName.toLowerCase(), _tableName.toLowerCase());
+        }
+    }
+
+    /**
+     * Record the tables a query read.
+     *
+     * @param key the query's key (see {@link GraphQLResultCache#getKey})
+     * @return true if the same tables were already recorded, so a tag computed before the query executed covers them
+     */
+    public static boolean recordTables(@NotNull String key, @NotNull GraphQLRequestContext ctx)
+    {
+        Map<String, TableInfo> tables = ctx.getTablesRead();
+        if (tables == null)
+            return false;
+
+        List<TableRef> refs = new ArrayList<>(tables.size());
+        for (TableInfo table : tables.values())
+        {
+            UserSchema schema = table.getUserSchema();
+            refs.add(new TableRef(schema.getContainer().getId(), schema.getSchemaName(), table.getName()));
+        }
+        List<TableRef> previous = DEPENDENCIES.get(key);
+        if (previous != null && new HashSet<>(refs).equals(new HashSet<>(previous)))
+            return true;
+        DEPENDENCIES.put(key, refs);
+        return false;
+    }
+
+    /**
+     * Compute the entity tag of the query's result for the user from the state of the tables it read.
+     *
+     * @return the weak entity tag, or null if the query's tables aren't known yet or one of them can't be validated
+     */
+    @Nullable
+    public static String getETag(@NotNull String key, @NotNull User user)
+    {
+        List<TableRef> refs = DEPENDENCIES.get(key);
+        if (refs == null)
+            return null;
+
+        StringBuilder state = new StringBuilder(EPOCH).append('\n').append(key);
+        for (TableRef ref : refs)
+        {
+            Container c = ContainerManager.getForId(ref._containerId);
+            UserSchema schema = c == null ? null : QueryService.get().getUserSchema(user, c, ref._schemaName);
+            TableInfo table = schema == null ? null : schema.getTable(ref._tableName);
+            if (table == null)
+                return null;
+
+            String tableKey = GraphQLResultCache.getTableKey(table);
+            state.append('\n').append(tableKey).append('=').append(GraphQLResultCache.getTableVersion(tableKey));
+
+            // core.Users and core.Containers changes are seen by the module's listeners
+            if (!GraphQLLookupCache.isCached(table))
+            {
+                String dataState = getDataState(table);
+                if (dataState == null)
+                    return null;
+                state.append(',').append(dataState);
+            }
+        }
+
+        return "W/\"" + GraphQLDocumentCache.hash(state.toString()) + "\"";
+    }
+
+    /**
+     * @return true if the If-None-Match header value lists the entity tag
+     */
+    public static boolean matches(@Nullable String ifNoneMatch, @NotNull String etag)
+    {
+        if (ifNoneMatch == null)
+            return false;
+
+        for (String tag : ifNoneMatch.split(","))
+        {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag) || ("W/" + tag).equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    // Row count and latest Modified value of the rows the user can see, or null if the table has no Modified column.
+    // This scans every visible row, not just the ones the query selected.
+    @Nullable
+    private static String getDataState(TableInfo table)
+    {
+        ColumnInfo modified = table.getColumn(MODIFIED);
+        if (modified == null)
+            return null;
+
+        SQLFragment select = QueryService.get().getSelectSQL(table, Collections.singleton(modified), null, null, Table.ALL_ROWS, Table.NO_OFFSET, false);
+        SQLFragment frag = new SQLFragment("SELECT COUNT(*) AS RowCount, MAX(x.").append(modified.getAlias()).append(") AS LastModified FROM (")
+                .append(select)
+                .append(") x");
+
+        long start = System.nanoTime();
+        Map<String, Object> row = new SqlSelector(table.getSchema(), frag).getMap();
+        GraphQLInstrumentation.recordSql(frag::getSQL, 1, start);
+        return row == null ? "" : row.get("RowCount") + "," + row.get("LastModified");
+    }
+}
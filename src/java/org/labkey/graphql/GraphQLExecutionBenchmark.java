@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.labkey.graphql;
+
+import graphql.ExecutionInput;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.language.Definition;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.OperationDefinition;
+import graphql.language.Selection;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLFieldsContainer;
+import graphql.schema.GraphQLList;
+import graphql.schema.GraphQLModifiedType;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLScalarType;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.security.User;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Measures a table's queries end to end through the module's own code against the database: the schema build
+ * ({@link GraphQLController#createSchema(TableInfo)}), the root list fetcher, single-valued lookups (pushed-down
+ * joins and {@link GraphQLLookupLoader}) and multi-valued lookups ({@link GraphQLMultiValuedLoader}), with the
+ * time and SQL statements of each query.  It also reads the nested query's root rows with its plan both ways:
+ * 'compact', straight from the result set into {@link GraphQLRow}s, and 'map', through a flat map per row into a
+ * CaseInsensitiveHashMap per row and per joined lookup, as rows were read before GraphQLRow.
+ *
+ * The fetchers select through TableInfo, which needs a running server, so this runs in the server (see
+ * GraphQLController.BenchmarkAction) rather than with the jmh benchmarks, which cover the work that doesn't touch
+ * the database.  The queries are generated from the table's GraphQL type: its scalar fields, a chain of
+ * single-valued lookups 'depth' deep, and its multi-valued lookups.
+ */
+public class GraphQLExecutionBenchmark
+{
+    // scalar fields selected from each type, besides the ones a lookup needs
+    private static final int MAX_SCALARS = 4;
+
+    private final User _user;
+    private final Container _container;
+    private final TableInfo _table;
+    private final int _first;
+    private final int _depth;
+    private final int _warmup;
+    private final int _iterations;
+
+    public GraphQLExecutionBenchmark(@NotNull User user, @NotNull Container container, @NotNull TableInfo table, int first, int depth, int warmup, int iterations)
+    {
+        _user = user;
+        _container = container;
+        _table = table;
+        _first = first;
+        _depth = depth;
+        _warmup = warmup;
+        _iterations = iterations;
+    }
+
+    /** Times of the iterations of one measurement. */
+    private static class Timing
+    {
+        private final List<Long> _nanos = new ArrayList<>();
+        private long _allocated;
+
+        Map<String, Object> toMap()
+        {
+            List<Long> sorted = new ArrayList<>(_nanos);
+            Collections.sort(sorted);
+            long total = 0;
+            for (long nanos : sorted)
+                total += nanos;
+
+            Map<String, Object> ret = new LinkedHashMap<>();
+            ret.put("iterations", sorted.size());
+            ret.put("avgMillis", millis(total / Math.max(1, sorted.size())));
+            ret.put("minMillis", sorted.isEmpty() ? 0 : millis(sorted.get(0)));
+            ret.put("medianMillis", sorted.isEmpty() ? 0 : millis(sorted.get(sorted.size() / 2)));
+            ret.put("maxMillis", sorted.isEmpty() ? 0 : millis(sorted.get(sorted.size() - 1)));
+            ret.put("perSecond", total == 0 ? 0 : sorted.size() * TimeUnit.SECONDS.toNanos(1) / total);
+            if (_allocated > 0)
+                ret.put("allocatedBytes", _allocated / Math.max(1, sorted.size()));
+            return ret;
+        }
+
+        private static double millis(long nanos)
+        {
+            return nanos / 1_000_000.0;
+        }
+    }
+
+    public Map<String, Object> run()
+    {
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("schemaName", _table.getUserSchema().getSchemaName());
+        ret.put("queryName", _table.getName());
+        ret.put("first", _first);
+        ret.put("depth", _depth);
+
+        // the module's schema build for the table, without the schema cache
+        ret.put("schemaBuild", time(() -> GraphQLController.createSchema(_table)).toMap());
+
+        GraphQLSchema schema = GraphQLSchemaCache.getSchema(_table);
+        GraphQLObjectType rowType = getRowType(schema);
+        List<Map<String, Object>> queries = new ArrayList<>();
+        String nested = createQuery(rowType, true);
+        queries.add(measureQuery("nestedLookups", schema, nested));
+        String multiValued = createQuery(rowType, false);
+        if (multiValued != null)
+            queries.add(measureQuery("multiValuedLookups", schema, multiValued));
+        ret.put("queries", queries);
+
+        ret.put("rows", measureRows(nested));
+        return ret;
+    }
+
+    private Timing time(Supplier<?> work)
+    {
+        for (int i = 0; i < _warmup; i++)
+            work.get();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocation = threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean)threads : null;
+        long threadId = Thread.currentThread().getId();
+
+        Timing timing = new Timing();
+        for (int i = 0; i < _iterations; i++)
+        {
+            long allocated = allocation != null ? allocation.getThreadAllocatedBytes(threadId) : 0;
+            long start = System.nanoTime();
+            work.get();
+            timing._nanos.add(System.nanoTime() - start);
+            if (allocation != null)
+                timing._allocated += allocation.getThreadAllocatedBytes(threadId) - allocated;
+        }
+        return timing;
+    }
+
+    // Execute the query as QueryAction does, with a new request context each time, and count its selects
+    private Map<String, Object> measureQuery(String name, GraphQLSchema schema, String query)
+    {
+        List<GraphQLInstrumentation> instrumentations = new ArrayList<>();
+        Timing timing = time(() -> {
+            GraphQLInstrumentation instrumentation = new GraphQLInstrumentation();
+            instrumentations.add(instrumentation);
+            GraphQL graphQL = GraphQL.newGraphQL(schema)
+                    .preparsedDocumentProvider(GraphQLDocumentCache.getProvider(schema))
+                    .instrumentation(instrumentation)
+                    .build();
+            ExecutionResult result = graphQL.execute(ExecutionInput.newExecutionInput()
+                    .query(query)
+                    .context(new GraphQLRequestContext(_user, _container))
+                    .build());
+            if (!result.getErrors().isEmpty())
+                throw new IllegalArgumentException("Benchmark query failed: " + result.getErrors().get(0).getMessage() + "\n" + query);
+            return result;
+        });
+
+        // the last iterations are the measured ones; warmup iterations may have filled caches they then hit
+        List<GraphQLInstrumentation> measured = instrumentations.subList(instrumentations.size() - _iterations, instrumentations.size());
+        long statements = 0;
+        long rows = 0;
+        for (GraphQLInstrumentation instrumentation : measured)
+        {
+            statements += instrumentation.getSqlStatements();
+            rows += instrumentation.getSqlRows();
+        }
+
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("name", name);
+        ret.put("query", query);
+        ret.putAll(timing.toMap());
+        ret.put("sqlStatementsPerQuery", (double)statements / Math.max(1, measured.size()));
+        ret.put("sqlRowsPerQuery", (double)rows / Math.max(1, measured.size()));
+        return ret;
+    }
+
+    // Read the root rows of the nested query with its plan, into GraphQLRows and into maps as before
+    private Map<String, Object> measureRows(String query)
+    {
+        List<Field> nodes = getNodesField(new Parser().parseDocument(query));
+        Map<String, List<Field>> selected = GraphQLSelection.getSelectedFields(nodes, Collections.emptyMap());
+
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("compact", time(() -> {
+            GraphQLQueryPlan plan = GraphQLQueryPlan.create(new GraphQLRequestContext(_user, _container), _table, selected, Collections.emptyMap(), Collections.emptyList());
+            return plan.select(plan.getSelector(null, null).setMaxRows(_first));
+        }).toMap());
+        ret.put("map", time(() -> {
+            GraphQLQueryPlan plan = GraphQLQueryPlan.create(new GraphQLRequestContext(_user, _container), _table, selected, Collections.emptyMap(), Collections.emptyList());
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (Map<String, Object> row : plan.reshape(plan.getSelector(null, null).setMaxRows(_first).getMapCollection()))
+                rows.add(toHashMap(row));
+            return rows;
+        }).toMap());
+        return ret;
+    }
+
+    // The rows as they were before GraphQLRow: a CaseInsensitiveHashMap per row and per joined lookup
+    private static Map<String, Object> toHashMap(Map<String, Object> row)
+    {
+        Map<String, Object> ret = new CaseInsensitiveHashMap<>();
+        for (Map.Entry<String, Object> entry : row.entrySet())
+        {
+            Object value = entry.getValue();
+            ret.put(entry.getKey(), value instanceof GraphQLRow ? toHashMap((GraphQLRow)value) : value);
+        }
+        return ret;
+    }
+
+    private static List<Field> getNodesField(Document document)
+    {
+        for (Definition definition : document.getDefinitions())
+        {
+            if (!(definition instanceof OperationDefinition))
+                continue;
+            Field list = (Field)((OperationDefinition)definition).getSelectionSet().getSelections().get(0);
+            for (Selection selection : list.getSelectionSet().getSelections())
+            {
+                if (selection instanceof Field && "nodes".equals(((Field)selection).getName()))
+                    return Collections.singletonList((Field)selection);
+            }
+        }
+        throw new IllegalStateException("No nodes field in the benchmark query");
+    }
+
+    private GraphQLObjectType getRowType(GraphQLSchema schema)
+    {
+        GraphQLFieldDefinition root = schema.getQueryType().getFieldDefinition(_table.getName());
+        if (root == null || !(unwrap(root.getType()) instanceof GraphQLObjectType))
+            throw new IllegalArgumentException("Table has no GraphQL root field: " + _table.getName());
+        return (GraphQLObjectType)unwrap(root.getType());
+    }
+
+    /**
+     * A query of the table's list field: its scalar fields and either a chain of single-valued lookups, each with
+     * its own scalar fields, or its multi-valued lookups.
+     *
+     * @return the query, or null if the type has no multi-valued lookups
+     */
+    @Nullable
+    private String createQuery(GraphQLObjectType rowType, boolean nested)
+    {
+        StringBuilder selection = new StringBuilder();
+        if (nested)
+        {
+            appendNested(selection, rowType, _depth);
+        }
+        else
+        {
+            appendScalars(selection, rowType);
+            boolean any = false;
+            for (GraphQLFieldDefinition field : rowType.getFieldDefinitions())
+            {
+                if (!(field.getType() instanceof GraphQLList) || isLinks(field))
+                    continue;
+                any = true;
+                selection.append(' ').append(field.getName());
+                if (unwrap(field.getType()) instanceof GraphQLObjectType)
+                    appendScalars(selection.append(" {"), (GraphQLObjectType)unwrap(field.getType())).append(" }");
+            }
+            if (!any)
+                return null;
+        }
+        return "{ " + _table.getName() + "List(first: " + _first + ") { nodes {" + selection + " } } }";
+    }
+
+    private static void appendNested(StringBuilder sb, GraphQLObjectType type, int depth)
+    {
+        appendScalars(sb, type);
+        if (depth == 0)
+            return;
+
+        // prefer lookups to tables other than core.Users, which the lookup cache may answer without SQL
+        GraphQLFieldDefinition lookup = null;
+        for (GraphQLFieldDefinition field : type.getFieldDefinitions())
+        {
+            if (field.getType() instanceof GraphQLList || !(unwrap(field.getType()) instanceof GraphQLObjectType) || isLinks(field))
+                continue;
+            if (lookup == null || "core__Users".equals(unwrap(lookup.getType()).getName()))
+                lookup = field;
+        }
+        if (lookup == null)
+            return;
+
+        sb.append(' ').append(lookup.getName()).append(" {");
+        appendNested(sb, (GraphQLObjectType)unwrap(lookup.getType()), depth - 1);
+        sb.append(" }");
+    }
+
+    private static StringBuilder appendScalars(StringBuilder sb, GraphQLFieldsContainer type)
+    {
+        int count = 0;
+        for (GraphQLFieldDefinition field : type.getFieldDefinitions())
+        {
+            if (count == MAX_SCALARS)
+                break;
+            if (!(field.getType() instanceof GraphQLList) && unwrap(field.getType()) instanceof GraphQLScalarType)
+            {
+                sb.append(' ').append(field.getName());
+                count++;
+            }
+        }
+        if (count == 0)
+            sb.append(" __typename");
+        return sb;
+    }
+
+    private static boolean isLinks(GraphQLFieldDefinition field)
+    {
+        return unwrap(field.getType()) == GraphQLLinks.getLinkType();
+    }
+
+    private static GraphQLType unwrap(GraphQLType type)
+    {
+        while (type instanceof GraphQLModifiedType)
+            type = ((GraphQLModifiedType)type).getWrappedType();
+        return type;
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.schema.DataFetcher;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.query.QueryService;
+import org.labkey.api.view.HttpView;
+import org.labkey.api.view.ViewContext;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs data fetchers that query the database off the request thread so independent fields
+ * (e.g., several multi-valued lookups of the same row type) resolve concurrently.
+ *
+ * Work is bounded twice: the shared executor runs at most ExecutorThreads fields at once across the server,
+ * and each request runs at most MaxConcurrency fields at once, so one query can't take every database connection.
+ * Neither limit blocks a thread -- work over the limit waits in a queue.  The shared executor is created again when
+ * ExecutorThreads or VirtualThreads change, and stopped when the server shuts down.
+ *
+ * Fields resolved on the executor don't see the request thread's transaction; they only read.  The thread-local
+ * state the request's SQL depends on -- the QueryService environment behind USERID() and ISMEMBEROF(), and the
+ * view context -- is captured with the request (see {@link RequestState}) and restored around each field.
+ */
+public class GraphQLExecutor
+{
+    private static final Logger LOG = Logger.getLogger(GraphQLExecutor.class);
+
+    private static volatile Shared _shared;
+    private static volatile boolean _shutdown;
+
+    // Request executors submit here, to whichever pool is current, so they keep working when the pool is replaced
+    private static final Executor SHARED = new Executor()
+    {
+        @Override
+        public void execute(@NotNull Runnable task)
+        {
+            while (true)
+            {
+                Shared shared = _shared;
+                if (shared == null || _shutdown)
+                {
+                    // shutting down -- finish the request's remaining fields on the submitting thread
+                    task.run();
+                    return;
+                }
+
+                try
+                {
+                    shared._executor.execute(task);
+                    return;
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // the pool was replaced after we read it; try the new one
+                    if (shared == _shared)
+                        throw e;
+                }
+            }
+        }
+    };
+
+    // The shared pool and the ExecutorThreads and VirtualThreads values it was created with
+    private static class Shared
+    {
+        private final ExecutorService _service;
+        private final Executor _executor;
+        private final int _threads;
+        private final boolean _virtualThreads;
+
+        Shared(ExecutorService service, Executor executor, int threads, boolean virtualThreads)
+        {
+            _service = service;
+            _executor = executor;
+            _threads = threads;
+            _virtualThreads = virtualThreads;
+        }
+    }
+
+    private GraphQLExecutor()
+    {
+    }
+
+    // Get the shared pool, creating it again if ExecutorThreads or VirtualThreads changed since it was created
+    private static Executor getShared()
+    {
+        int threads = GraphQLManager.get().getExecutorThreads();
+        boolean virtualThreads = GraphQLManager.get().isVirtualThreads();
+        Shared shared = _shared;
+        if (shared != null && shared._threads == threads && shared._virtualThreads == virtualThreads)
+            return SHARED;
+
+        synchronized (GraphQLExecutor.class)
+        {
+            shared = _shared;
+            if (!_shutdown && (shared == null || shared._threads != threads || shared._virtualThreads != virtualThreads))
+            {
+                _shared = createShared(threads, virtualThreads);
+
+                // fields already queued on the old pool still run; new ones go to the new pool
+                if (shared != null)
+                    shared._service.shutdown();
+            }
+        }
+        return SHARED;
+    }
+
+    private static Shared createShared(int threads, boolean virtualThreads)
+    {
+        if (virtualThreads)
+        {
+            // Executors.newVirtualThreadPerTaskExecutor() is only available on newer JVMs
+            try
+            {
+                ExecutorService virtual = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                return new Shared(virtual, new LimitedExecutor(virtual, threads), threads, true);
+            }
+            catch (ReflectiveOperationException e)
+            {
+                LOG.warn("Virtual threads aren't supported by this JVM; using a fixed thread pool for GraphQL fields");
+            }
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "GraphQL-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(threads, factory);
+        return new Shared(pool, pool, threads, virtualThreads);
+    }
+
+    /**
+     * Stop the shared pool when the server shuts down (see GraphQLModule.destroy).  Fields still waiting for
+     * the pool run on the thread that submits them; nothing new starts a pool.
+     */
+    public static void shutdown()
+    {
+        Shared shared;
+        synchronized (GraphQLExecutor.class)
+        {
+            _shutdown = true;
+            shared = _shared;
+            _shared = null;
+        }
+        if (shared == null)
+            return;
+
+        shared._service.shutdown();
+        try
+        {
+            if (!shared._service.awaitTermination(5, TimeUnit.SECONDS))
+                shared._service.shutdownNow();
+        }
+        catch (InterruptedException e)
+        {
+            shared._service.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create the executor for one request: work is run on the shared executor, at most maxConcurrency at a time.
+     */
+    public static Executor create(int maxConcurrency)
+    {
+        return new LimitedExecutor(getShared(), maxConcurrency);
+    }
+
+    /**
+     * Wrap the data fetcher to run on the request's executor, if the request has one.
+     * The fetcher may itself return a CompletableFuture.  The field's {@link GraphQLInstrumentation} scope
+     * moves to the executor with it, so its SQL is still attributed to the field, and so does the request's
+     * thread-local state.
+     */
+    public static DataFetcher async(@NotNull DataFetcher fetcher)
+    {
+        return env -> {
+            GraphQLRequestContext ctx = GraphQLRequestContext.get(env);
+            Executor executor = ctx != null ? ctx.getExecutor() : null;
+            if (executor == null)
+                return fetcher.get(env);
+
+            GraphQLInstrumentation.Scope scope = GraphQLInstrumentation.getScope();
+            RequestState state = ctx.getRequestState();
+            return CompletableFuture
+                    .supplyAsync(() -> state.apply(() -> GraphQLInstrumentation.getInScope(scope, () -> fetcher.get(env))), executor)
+                    .thenCompose(GraphQLExecutor::toStage);
+        };
+    }
+
+    /**
+     * The LabKey thread-local state of a request thread, captured when the request starts.  Fields resolved later
+     * may run on any thread, including an executor thread that has finished another field, so the state is
+     * captured once rather than from whichever thread happens to start the field.
+     */
+    public static class RequestState
+    {
+        private final @Nullable Object _environment;
+        private final @Nullable ViewContext _context;
+
+        private RequestState()
+        {
+            QueryService qs = QueryService.get();
+            _environment = qs != null ? qs.cloneEnvironment() : null;
+            _context = HttpView.hasCurrentView() ? HttpView.currentContext() : null;
+        }
+
+        /** Capture the current thread's state. */
+        public static RequestState capture()
+        {
+            return new RequestState();
+        }
+
+        /** Get the supplier's value with this state on the current thread, then clear it again. */
+        public <T> T apply(@NotNull Supplier<T> supplier)
+        {
+            QueryService qs = _environment != null ? QueryService.get() : null;
+            if (qs != null)
+                qs.copyEnvironment(_environment);
+            int stackSize = HttpView.getStackSize();
+            if (_context != null)
+                HttpView.initForRequest(_context, _context.getRequest(), _context.getResponse());
+            try
+            {
+                return supplier.get();
+            }
+            finally
+            {
+                HttpView.resetStackSize(stackSize);
+                if (qs != null)
+                    qs.clearEnvironment();
+            }
+        }
+    }
+
+    private static CompletionStage<Object> toStage(Object value)
+    {
+        if (value instanceof CompletionStage)
+            return (CompletionStage<Object>)value;
+        return CompletableFuture.completedFuture(value);
+    }
+
+    /**
+     * Runs tasks on the delegate, at most 'limit' at a time.  Tasks over the limit are queued and started
+     * as running tasks finish, so the limit never blocks a delegate thread.
+     */
+    private static class LimitedExecutor implements Executor
+    {
+        private final Executor _delegate;
+        private final int _limit;
+        private final Queue<Runnable> _queue = new ArrayDeque<>();
+        private int _running;
+
+        LimitedExecutor(Executor delegate, int limit)
+        {
+            _delegate = delegate;
+            _limit = Math.max(1, limit);
+        }
+
+        @Override
+        public void execute(@NotNull Runnable task)
+        {
+            synchronized (this)
+            {
+                if (_running >= _limit)
+                {
+                    _queue.add(task);
+                    return;
+                }
+                _running++;
+            }
+            _delegate.execute(() -> run(task));
+        }
+
+        private void run(Runnable task)
+        {
+            Runnable next = task;
+            while (next != null)
+            {
+                try
+                {
+                    next.run();
+                }
+                catch (Throwable t)
+                {
+                    // CompletableFuture tasks complete exceptionally instead of throwing
+                    LOG.error("Unexpected error resolving GraphQL field", t);
+                }
+
+                synchronized (this)
+                {
+                    next = _queue.poll();
+                    if (next == null)
+                        _running--;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,957 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import graphql.ExecutionInput;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.GraphQLError;
+import graphql.language.Argument;
+import graphql.language.ArrayValue;
+import graphql.language.AstPrinter;
+import graphql.language.BooleanValue;
+import graphql.language.Definition;
+import graphql.language.Directive;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
+import graphql.language.FragmentSpread;
+import graphql.language.InlineFragment;
+import graphql.language.ObjectField;
+import graphql.language.ObjectValue;
+import graphql.language.OperationDefinition;
+import graphql.language.Selection;
+import graphql.language.SelectionSet;
+import graphql.language.StringValue;
+import graphql.language.Value;
+import graphql.language.VariableReference;
+import graphql.parser.Parser;
+import graphql.schema.DataFetcher;
+import graphql.schema.DataFetchingEnvironment;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.cache.StringKeyCache;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Pattern;
+
+/**
+ * Incremental delivery of queries with @defer and @stream: the fields that aren't deferred are sent first, and each
+ * deferred fragment and streamed list follows as another part of a multipart/mixed response as soon as it resolves.
+ *
+ * graphql-java can't defer fields itself, so the query is rewritten into several queries: an initial query with
+ * the deferred fragments and streamed fields marked @skip, and for each of those a query that selects only the path
+ * to it and the fragment or field itself.  All of them run with the same {@link GraphQLRequestContext}.  The initial
+ * query still plans the columns of its skipped selections, and the parts replay the values it fetched along their
+ * paths (see {@link Replay}), so a part selects only its own lookups and lists rather than running the path's
+ * queries again, and its objects are the initial query's own rows, in the same order.  With parallel execution the
+ * parts resolve concurrently.  Each part is written once the parts enclosing it have been written.
+ *
+ * The payloads follow the incremental delivery proposal: the first is {data, hasNext}, the rest are
+ * {incremental: [{data | items, path, label}], hasNext}.  Streamed lists are sent empty in the payload of their
+ * parent and all their items follow in one payload (initialCount is ignored).  @defer is supported on inline
+ * fragments and fragment spreads, and @stream on list fields, in the operation's own selections only, at most
+ * {@link #MAX_PARTS} times per query.
+ */
+public class GraphQLIncrementalWriter
+{
+    public static final int MAX_PARTS = 20;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String DEFER = "defer";
+    private static final String STREAM = "stream";
+    private static final String BOUNDARY = "-";
+    private static final Pattern LIST_INDEX = Pattern.compile("\\[\\d+]");
+
+    // the variables a query's @defer and @stream arguments use, by query hash, and the rewrites by query hash and their values
+    private static final StringKeyCache<List<String>> DIRECTIVE_VARIABLES = CacheManager.getStringKeyCache(1000, CacheManager.DAY, "GraphQL incremental directive variables");
+    private static final StringKeyCache<Rewrites> REWRITES = CacheManager.getStringKeyCache(1000, CacheManager.DAY, "GraphQL incremental rewrites");
+
+    private final Rewrites _rewrites;
+    private final Map<String, Object> _variables;
+
+    /** A deferred fragment or streamed field. */
+    private static class Part
+    {
+        private final int _index;
+        private final int _parent;
+        private final boolean _stream;
+        private final String _label;
+        // response keys from the root to the object holding the fragment or streamed field
+        private final List<String> _path;
+        private final String _fieldKey;
+
+        Part(int index, int parent, boolean stream, String label, List<String> path, String fieldKey)
+        {
+            _index = index;
+            _parent = parent;
+            _stream = stream;
+            _label = label;
+            _path = path;
+            _fieldKey = fieldKey;
+        }
+    }
+
+    /** The rewritten queries of a query, for the values of its directives' variables. */
+    private static class Rewrites
+    {
+        private final String _fullQuery;
+        private final String _initialQuery;
+        private final List<Part> _parts;
+        private final List<String> _partQueries;
+        // the parts' paths without list indexes and all their prefixes, e.g. "/CellLineList" and "/CellLineList/nodes"
+        private final Set<String> _replayPaths;
+
+        Rewrites(String fullQuery, String initialQuery, List<Part> parts, List<String> partQueries)
+        {
+            _fullQuery = fullQuery;
+            _initialQuery = initialQuery;
+            _parts = Collections.unmodifiableList(parts);
+            _partQueries = Collections.unmodifiableList(partQueries);
+
+            Set<String> replayPaths = new HashSet<>();
+            for (Part part : parts)
+            {
+                StringBuilder path = new StringBuilder();
+                for (String key : part._path)
+                    replayPaths.add(path.append("/").append(key).toString());
+            }
+            _replayPaths = Collections.unmodifiableSet(replayPaths);
+        }
+    }
+
+    private enum Mode
+    {
+        FULL,       // strip the directives, keep every selection
+        INITIAL,    // skip the deferred fragments and streamed fields
+        PART        // keep only the path to one part and the part itself
+    }
+
+    private static class Rewrite
+    {
+        private final Mode _mode;
+        private final int _target;
+        private int _counter;
+
+        Rewrite(Mode mode, int target)
+        {
+            _mode = mode;
+            _target = target;
+        }
+    }
+
+    /** Rewrites one query, recording its parts and the variables its directives use. */
+    private static class Rewriter
+    {
+        private final String _query;
+        private final Map<String, Object> _variables;
+        private final List<Part> _parts = new ArrayList<>();
+        private final Set<String> _directiveVariables = new TreeSet<>();
+
+        Rewriter(String query, Map<String, Object> variables)
+        {
+            _query = query;
+            _variables = variables;
+        }
+
+        Rewrites rewriteAll()
+        {
+            // also finds the parts
+            String fullQuery = rewrite(Mode.FULL, -1);
+            if (_parts.size() > MAX_PARTS)
+                throw new IllegalArgumentException("A query may use @defer and @stream at most " + MAX_PARTS + " times, but this one uses them " + _parts.size() + " times");
+
+            List<String> partQueries = new ArrayList<>(_parts.size());
+            for (Part part : _parts)
+                partQueries.add(rewrite(Mode.PART, part._index));
+            return new Rewrites(fullQuery, rewrite(Mode.INITIAL, -1), _parts, partQueries);
+        }
+
+        private String rewrite(Mode mode, int target)
+        {
+            Document document;
+            try
+            {
+                document = new Parser().parseDocument(_query);
+            }
+            catch (ParseCancellationException e)
+            {
+                throw new IllegalArgumentException("Invalid query: " + e.getMessage());
+            }
+
+            OperationDefinition operation = null;
+            Map<String, FragmentDefinition> fragments = new HashMap<>();
+            for (Definition definition : document.getDefinitions())
+            {
+                if (definition instanceof OperationDefinition)
+                {
+                    if (operation != null)
+                        throw new IllegalArgumentException("@defer and @stream require a document with a single query operation");
+                    operation = (OperationDefinition)definition;
+                }
+                else if (definition instanceof FragmentDefinition)
+                {
+                    FragmentDefinition fragment = (FragmentDefinition)definition;
+                    if (hasIncrementalDirective(fragment.getSelectionSet()))
+                        throw new IllegalArgumentException("@defer and @stream are only supported in the operation's selections, not in fragment definitions");
+                    fragments.put(fragment.getName(), fragment);
+                }
+            }
+            if (operation == null || operation.getOperation() != OperationDefinition.Operation.QUERY)
+                throw new IllegalArgumentException("@defer and @stream require a document with a single query operation");
+
+            Rewrite rw = new Rewrite(mode, target);
+            rewrite(operation.getSelectionSet(), rw, new ArrayList<>(), -1, false);
+
+            // also the variables only the removed directives used
+            removeUnused(document, operation, fragments);
+
+            return AstPrinter.printAst(document);
+        }
+
+        /**
+         * Rewrite the selection set for the mode.
+         * @param parent index of the part enclosing the selection set, or -1
+         * @param inTarget true inside the target part, where nested parts are removed
+         * @return true if the selection set contains the target part
+         */
+        private boolean rewrite(SelectionSet set, Rewrite rw, List<String> path, int parent, boolean inTarget)
+        {
+            if (set == null)
+                return false;
+
+            boolean found = false;
+            Iterator<Selection> it = set.getSelections().iterator();
+            while (it.hasNext())
+            {
+                Selection selection = it.next();
+                Directive directive = removeIncrementalDirective(selection);
+                int index = directive != null ? rw._counter++ : -1;
+                boolean isTarget = index >= 0 && index == rw._target;
+
+                String key = selection instanceof Field ? getResponseKey((Field)selection) : null;
+                if (index >= 0 && rw._mode == Mode.FULL)
+                    _parts.add(new Part(index, parent, selection instanceof Field, getLabel(directive), new ArrayList<>(path), key));
+
+                if (index >= 0 && rw._mode == Mode.INITIAL)
+                {
+                    // kept but skipped, so the initial query plans the columns the part will read from its rows
+                    skip(selection, rw);
+                    addSkipDirective(selection);
+                    continue;
+                }
+                if (index >= 0 && rw._mode == Mode.PART && !isTarget && inTarget)
+                {
+                    // parts nested in another part are visited for their indexes, then removed
+                    skip(selection, rw);
+                    it.remove();
+                    continue;
+                }
+
+                int childParent = index >= 0 ? index : parent;
+                boolean contains = isTarget;
+                if (selection instanceof Field)
+                {
+                    List<String> childPath = new ArrayList<>(path);
+                    childPath.add(key);
+                    contains |= rewrite(((Field)selection).getSelectionSet(), rw, childPath, childParent, inTarget || isTarget);
+                }
+                else if (selection instanceof InlineFragment)
+                {
+                    contains |= rewrite(((InlineFragment)selection).getSelectionSet(), rw, path, childParent, inTarget || isTarget);
+                }
+
+                if (rw._mode == Mode.PART && !contains && !inTarget)
+                    it.remove();
+                found |= contains;
+            }
+
+            // removing selections mustn't leave an empty (invalid) selection set
+            if (set.getSelections().isEmpty())
+                set.getSelections().add(new Field("__typename"));
+
+            return found;
+        }
+
+        // Remove the directives of the parts inside a skipped or removed selection, and count them so every rewrite numbers the parts the same way
+        private void skip(Selection selection, Rewrite rw)
+        {
+            SelectionSet set = selection instanceof Field ? ((Field)selection).getSelectionSet()
+                    : selection instanceof InlineFragment ? ((InlineFragment)selection).getSelectionSet() : null;
+            if (set == null)
+                return;
+
+            for (Selection child : set.getSelections())
+            {
+                if (removeIncrementalDirective(child) != null)
+                    rw._counter++;
+                skip(child, rw);
+            }
+        }
+
+        /**
+         * Remove the selection's @defer (on fragments) or @stream (on fields) directive.
+         * @return the directive if it's enabled, or null if there was none or its 'if' argument is false
+         */
+        @Nullable
+        private Directive removeIncrementalDirective(Selection selection)
+        {
+            String name = selection instanceof Field ? STREAM : DEFER;
+            Iterator<Directive> it = getDirectives(selection).iterator();
+            while (it.hasNext())
+            {
+                Directive directive = it.next();
+                if (!name.equals(directive.getName()))
+                    continue;
+
+                it.remove();
+                Value condition = getArgument(directive, "if");
+                if (condition instanceof BooleanValue && !((BooleanValue)condition).isValue())
+                    return null;
+                if (condition instanceof VariableReference)
+                {
+                    String variable = ((VariableReference)condition).getName();
+                    _directiveVariables.add(variable);
+                    if (Boolean.FALSE.equals(_variables.get(variable)))
+                        return null;
+                }
+                return directive;
+            }
+            return null;
+        }
+
+        @Nullable
+        private String getLabel(@Nullable Directive directive)
+        {
+            Value label = directive != null ? getArgument(directive, "label") : null;
+            if (label instanceof StringValue)
+                return ((StringValue)label).getValue();
+            if (label instanceof VariableReference)
+            {
+                String variable = ((VariableReference)label).getName();
+                _directiveVariables.add(variable);
+                Object value = _variables.get(variable);
+                return value != null ? value.toString() : null;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Fetches the fields on the parts' paths once, in the initial query, and returns the same values when the parts'
+     * queries fetch them again, by their concrete path.  Values the initial query didn't fetch, e.g. on a path through
+     * an enclosing part, are fetched as usual; the request's lookups are memoized, so they resolve to the same rows.
+     */
+    static class Replay
+    {
+        private final Set<String> _paths;
+        private final Map<String, Object> _values = new ConcurrentHashMap<>();
+        private volatile boolean _recording = true;
+
+        Replay(Set<String> paths)
+        {
+            _paths = paths;
+        }
+
+        Object fetch(DataFetchingEnvironment env, DataFetcher<?> fetcher)
+        {
+            String path = env.getFieldTypeInfo().getPath().toString();
+            if (!_paths.contains(LIST_INDEX.matcher(path).replaceAll("")))
+                return fetcher.get(env);
+
+            if (_recording)
+            {
+                Object value = fetcher.get(env);
+                if (value != null)
+                    _values.put(path, value);
+                return value;
+            }
+
+            Object value = _values.get(path);
+            return value != null ? value : fetcher.get(env);
+        }
+
+        void stopRecording()
+        {
+            _recording = false;
+        }
+    }
+
+    private GraphQLIncrementalWriter(Rewrites rewrites, Map<String, Object> variables)
+    {
+        _rewrites = rewrites;
+        _variables = variables;
+    }
+
+    /**
+     * @return true if the query may use @defer or @stream
+     */
+    public static boolean isIncremental(@Nullable String query)
+    {
+        return query != null && (query.contains("@" + DEFER) || query.contains("@" + STREAM));
+    }
+
+    /**
+     * Create a writer for the query, or throw IllegalArgumentException if its use of @defer and @stream isn't supported.
+     */
+    public static GraphQLIncrementalWriter create(@NotNull String query, @Nullable Map<String, Object> variables)
+    {
+        Map<String, Object> vars = variables != null ? variables : Collections.emptyMap();
+        String hash = GraphQLDocumentCache.hash(query);
+
+        List<String> directiveVariables = DIRECTIVE_VARIABLES.get(hash);
+        String key = directiveVariables != null ? getKey(hash, directiveVariables, vars) : null;
+        Rewrites rewrites = key != null ? REWRITES.get(key) : null;
+        if (rewrites == null)
+        {
+            Rewriter rewriter = new Rewriter(query, vars);
+            rewrites = rewriter.rewriteAll();
+
+            directiveVariables = new ArrayList<>(rewriter._directiveVariables);
+            DIRECTIVE_VARIABLES.put(hash, directiveVariables);
+            key = getKey(hash, directiveVariables, vars);
+            if (key != null)
+                REWRITES.put(key, rewrites);
+        }
+        return new GraphQLIncrementalWriter(rewrites, vars);
+    }
+
+    // The rewrites depend on the query and the values of the variables its @defer and @stream arguments use
+    @Nullable
+    private static String getKey(String hash, List<String> directiveVariables, Map<String, Object> variables)
+    {
+        if (directiveVariables.isEmpty())
+            return hash;
+
+        List<Object> values = new ArrayList<>(directiveVariables.size());
+        for (String variable : directiveVariables)
+            values.add(variables.get(variable));
+        try
+        {
+            return hash + "/" + MAPPER.writeValueAsString(values);
+        }
+        catch (JsonProcessingException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * The query with the @defer and @stream directives removed, for validation and cost analysis.
+     */
+    public String getFullQuery()
+    {
+        return _rewrites._fullQuery;
+    }
+
+    public int getPartCount()
+    {
+        return _rewrites._parts.size();
+    }
+
+    private static boolean hasIncrementalDirective(SelectionSet set)
+    {
+        if (set == null)
+            return false;
+        for (Selection selection : set.getSelections())
+        {
+            for (Directive directive : getDirectives(selection))
+            {
+                if (DEFER.equals(directive.getName()) || STREAM.equals(directive.getName()))
+                    return true;
+            }
+            if (selection instanceof Field && hasIncrementalDirective(((Field)selection).getSelectionSet()))
+                return true;
+            if (selection instanceof InlineFragment && hasIncrementalDirective(((InlineFragment)selection).getSelectionSet()))
+                return true;
+        }
+        return false;
+    }
+
+    private static List<Directive> getDirectives(Selection selection)
+    {
+        if (selection instanceof Field)
+            return ((Field)selection).getDirectives();
+        if (selection instanceof InlineFragment)
+            return ((InlineFragment)selection).getDirectives();
+        if (selection instanceof FragmentSpread)
+            return ((FragmentSpread)selection).getDirectives();
+        return Collections.emptyList();
+    }
+
+    // Replaces any @skip or @include the selection already has; a skipped selection is skipped either way
+    private static void addSkipDirective(Selection selection)
+    {
+        List<Directive> directives = getDirectives(selection);
+        directives.removeIf(directive -> "skip".equals(directive.getName()) || "include".equals(directive.getName()));
+        directives.add(new Directive("skip", Collections.singletonList(new Argument("if", new BooleanValue(true)))));
+    }
+
+    @Nullable
+    private static Value getArgument(Directive directive, String name)
+    {
+        for (Argument argument : directive.getArguments())
+        {
+            if (name.equals(argument.getName()))
+                return argument.getValue();
+        }
+        return null;
+    }
+
+    private static String getResponseKey(Field field)
+    {
+        return field.getAlias() != null ? field.getAlias() : field.getName();
+    }
+
+    // Validation rejects unused fragments and variables, so remove the ones only the removed selections and directives used
+    private static void removeUnused(Document document, OperationDefinition operation, Map<String, FragmentDefinition> fragments)
+    {
+        Set<String> usedFragments = new HashSet<>();
+        Set<String> usedVariables = new HashSet<>();
+        collectUsage(operation.getSelectionSet(), fragments, usedFragments, usedVariables);
+
+        document.getDefinitions().removeIf(d -> d instanceof FragmentDefinition && !usedFragments.contains(((FragmentDefinition)d).getName()));
+        operation.getVariableDefinitions().removeIf(v -> !usedVariables.contains(v.getName()));
+    }
+
+    private static void collectUsage(SelectionSet set, Map<String, FragmentDefinition> fragments, Set<String> usedFragments, Set<String> usedVariables)
+    {
+        if (set == null)
+            return;
+
+        for (Selection selection : set.getSelections())
+        {
+            for (Directive directive : getDirectives(selection))
+            {
+                for (Argument argument : directive.getArguments())
+                    collectVariables(argument.getValue(), usedVariables);
+            }
+
+            if (selection instanceof Field)
+            {
+                Field field = (Field)selection;
+                for (Argument argument : field.getArguments())
+                    collectVariables(argument.getValue(), usedVariables);
+                collectUsage(field.getSelectionSet(), fragments, usedFragments, usedVariables);
+            }
+            else if (selection instanceof InlineFragment)
+            {
+                collectUsage(((InlineFragment)selection).getSelectionSet(), fragments, usedFragments, usedVariables);
+            }
+            else if (selection instanceof FragmentSpread)
+            {
+                String name = ((FragmentSpread)selection).getName();
+                FragmentDefinition fragment = fragments.get(name);
+                if (usedFragments.add(name) && fragment != null)
+                    collectUsage(fragment.getSelectionSet(), fragments, usedFragments, usedVariables);
+            }
+        }
+    }
+
+    private static void collectVariables(Value value, Set<String> usedVariables)
+    {
+        if (value instanceof VariableReference)
+            usedVariables.add(((VariableReference)value).getName());
+        else if (value instanceof ArrayValue)
+        {
+            for (Value v : ((ArrayValue)value).getValues())
+                collectVariables(v, usedVariables);
+        }
+        else if (value instanceof ObjectValue)
+        {
+            for (ObjectField field : ((ObjectValue)value).getObjectFields())
+                collectVariables(field.getValue(), usedVariables);
+        }
+    }
+
+    /** The result of a part's query, queued for the request thread to write. */
+    private static class PartResult
+    {
+        private final Part _part;
+        private final ExecutionResult _result;
+        private final Throwable _exception;
+
+        PartResult(Part part, ExecutionResult result, Throwable exception)
+        {
+            _part = part;
+            _result = result;
+            _exception = exception;
+        }
+    }
+
+    /**
+     * Execute the initial query and write it, then execute every part and write each one when it and the
+     * parts enclosing it have resolved.  The parts reuse the values the initial query fetched on their paths.
+     */
+    public void write(@NotNull HttpServletResponse response, @NotNull GraphQL graphQL, @NotNull GraphQLRequestContext ctx) throws IOException
+    {
+        response.setContentType("multipart/mixed; boundary=\"" + BOUNDARY + "\"; deferSpec=20220824");
+        response.setCharacterEncoding("UTF-8");
+        ServletOutputStream out = response.getOutputStream();
+
+        Replay replay = new Replay(_rewrites._replayPaths);
+        ctx.setReplay(replay);
+        try
+        {
+            write(out, graphQL, ctx, replay);
+        }
+        finally
+        {
+            ctx.setReplay(null);
+        }
+    }
+
+    private void write(ServletOutputStream out, GraphQL graphQL, GraphQLRequestContext ctx, Replay replay) throws IOException
+    {
+        List<Part> parts = _rewrites._parts;
+        ExecutionResult initial = graphQL.execute(createInput(_rewrites._initialQuery, ctx));
+        replay.stopRecording();
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("data", initial.getData());
+        if (!initial.getErrors().isEmpty())
+        {
+            payload.put("errors", toErrors(initial.getErrors()));
+            payload.put("hasNext", false);
+            writePart(out, payload);
+            writeEnd(out);
+            return;
+        }
+        addStreamPlaceholders(initial.getData(), -1);
+        payload.put("hasNext", !parts.isEmpty());
+        writePart(out, payload);
+
+        // start every part before waiting for any, so they resolve concurrently with parallel execution
+        BlockingQueue<PartResult> completed = new LinkedBlockingQueue<>();
+        for (Part part : parts)
+        {
+            graphQL.executeAsync(createInput(_rewrites._partQueries.get(part._index), ctx))
+                    .whenComplete((result, t) -> completed.add(new PartResult(part, result, t)));
+        }
+
+        Set<Integer> written = new HashSet<>();
+        List<PartResult> waiting = new ArrayList<>();
+        int remaining = parts.size();
+        while (remaining > 0)
+        {
+            try
+            {
+                waiting.add(completed.take());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            // write every waiting part whose enclosing part has been written, until none is left to write
+            boolean progress = true;
+            while (progress)
+            {
+                progress = false;
+                Iterator<PartResult> it = waiting.iterator();
+                while (it.hasNext())
+                {
+                    PartResult result = it.next();
+                    if (result._part._parent >= 0 && !written.contains(result._part._parent))
+                        continue;
+
+                    it.remove();
+                    written.add(result._part._index);
+                    remaining--;
+                    writePart(out, createIncrementalPayload(result, remaining > 0));
+                    progress = true;
+                }
+            }
+        }
+
+        writeEnd(out);
+    }
+
+    private ExecutionInput createInput(String query, GraphQLRequestContext ctx)
+    {
+        return ExecutionInput.newExecutionInput()
+                .query(query)
+                .variables(_variables)
+                .context(ctx)
+                .build();
+    }
+
+    private Map<String, Object> createIncrementalPayload(PartResult result, boolean hasNext)
+    {
+        Part part = result._part;
+        List<Map<String, Object>> incremental = new ArrayList<>();
+
+        if (result._exception != null || !result._result.getErrors().isEmpty())
+        {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("path", part._path);
+            entry.put("errors", result._exception != null
+                    ? Collections.singletonList(Collections.singletonMap("message", result._exception.getMessage()))
+                    : toErrors(result._result.getErrors()));
+            if (part._label != null)
+                entry.put("label", part._label);
+            incremental.add(entry);
+        }
+        else
+        {
+            Object data = result._result.getData();
+            addStreamPlaceholders(data, part._index);
+
+            for (Map.Entry<List<Object>, Map<String, Object>> target : findObjects(data, part._path).entrySet())
+            {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                List<Object> path = new ArrayList<>(target.getKey());
+                if (part._stream)
+                {
+                    path.add(part._fieldKey);
+                    path.add(0);
+                    Object items = target.getValue().get(part._fieldKey);
+                    entry.put("items", items != null ? items : Collections.emptyList());
+                }
+                else
+                {
+                    // the part's query selects nothing else at the fragment's path, so the object has just the fragment's fields
+                    entry.put("data", target.getValue());
+                }
+                entry.put("path", path);
+                if (part._label != null)
+                    entry.put("label", part._label);
+                incremental.add(entry);
+            }
+        }
+
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("incremental", incremental);
+        payload.put("hasNext", hasNext);
+        return payload;
+    }
+
+    // Streamed fields directly inside a payload are sent as empty lists; their items follow
+    private void addStreamPlaceholders(Object data, int parent)
+    {
+        for (Part part : _rewrites._parts)
+        {
+            if (!part._stream || part._parent != parent)
+                continue;
+            for (Map<String, Object> object : findObjects(data, part._path).values())
+                object.putIfAbsent(part._fieldKey, new ArrayList<>());
+        }
+    }
+
+    /**
+     * Find the objects at the path of response keys, by their concrete path (including list indexes).
+     */
+    private static Map<List<Object>, Map<String, Object>> findObjects(Object data, List<String> path)
+    {
+        Map<List<Object>, Map<String, Object>> ret = new LinkedHashMap<>();
+        findObjects(data, path, 0, new ArrayList<>(), ret);
+        return ret;
+    }
+
+    private static void findObjects(Object value, List<String> path, int depth, List<Object> concretePath, Map<List<Object>, Map<String, Object>> ret)
+    {
+        if (value instanceof List)
+        {
+            List<?> list = (List<?>)value;
+            for (int i = 0; i < list.size(); i++)
+            {
+                List<Object> itemPath = new ArrayList<>(concretePath);
+                itemPath.add(i);
+                findObjects(list.get(i), path, depth, itemPath, ret);
+            }
+        }
+        else if (value instanceof Map)
+        {
+            Map<String, Object> object = (Map<String, Object>)value;
+            if (depth == path.size())
+            {
+                ret.put(concretePath, object);
+                return;
+            }
+
+            List<Object> childPath = new ArrayList<>(concretePath);
+            childPath.add(path.get(depth));
+            findObjects(object.get(path.get(depth)), path, depth + 1, childPath, ret);
+        }
+    }
+
+    private static List<Map<String, Object>> toErrors(List<GraphQLError> errors)
+    {
+        List<Map<String, Object>> ret = new ArrayList<>(errors.size());
+        for (GraphQLError error : errors)
+            ret.add(Collections.singletonMap("message", error.getMessage()));
+        return ret;
+    }
+
+    private static void writePart(ServletOutputStream out, Map<String, Object> payload) throws IOException
+    {
+        out.write(("\r\n--" + BOUNDARY + "\r\nContent-Type: application/json; charset=utf-8\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        out.write(MAPPER.writeValueAsBytes(payload));
+        out.flush();
+    }
+
+    private static void writeEnd(ServletOutputStream out) throws IOException
+    {
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static Map<String, Object> variables(Object... keysAndValues)
+        {
+            Map<String, Object> ret = new HashMap<>();
+            for (int i = 0; i < keysAndValues.length; i += 2)
+                ret.put((String)keysAndValues[i], keysAndValues[i + 1]);
+            return ret;
+        }
+
+        // compare printed queries, so the expected queries needn't match AstPrinter's layout
+        private static void assertQuery(String expected, String actual)
+        {
+            assertEquals(AstPrinter.printAst(new Parser().parseDocument(expected)), actual);
+        }
+
+        private static void assertPart(Part part, int index, int parent, boolean stream, String label, List<String> path)
+        {
+            assertEquals(index, part._index);
+            assertEquals(parent, part._parent);
+            assertEquals(stream, part._stream);
+            assertEquals(label, part._label);
+            assertEquals(path, part._path);
+        }
+
+        @Test
+        public void testNumbering()
+        {
+            GraphQLIncrementalWriter writer = create("{ a { id ... @defer(label: \"x\") { name } b @stream { id } } c { id } }", null);
+            Rewrites rewrites = writer._rewrites;
+
+            assertEquals(2, writer.getPartCount());
+            assertPart(rewrites._parts.get(0), 0, -1, false, "x", Collections.singletonList("a"));
+            assertPart(rewrites._parts.get(1), 1, -1, true, null, Collections.singletonList("a"));
+            assertEquals("b", rewrites._parts.get(1)._fieldKey);
+
+            assertQuery("{ a { id ... { name } b { id } } c { id } }", writer.getFullQuery());
+            assertQuery("{ a { id ... @skip(if: true) { name } b @skip(if: true) { id } } c { id } }", rewrites._initialQuery);
+            assertQuery("{ a { ... { name } } }", rewrites._partQueries.get(0));
+            assertQuery("{ a { b { id } } }", rewrites._partQueries.get(1));
+            assertEquals(new HashSet<>(Collections.singletonList("/a")), rewrites._replayPaths);
+        }
+
+        @Test
+        public void testNestedParts()
+        {
+            GraphQLIncrementalWriter writer = create("{ a { ... @defer { name c { ... @defer { d } } } e @stream { id } } }", null);
+            Rewrites rewrites = writer._rewrites;
+
+            assertEquals(3, writer.getPartCount());
+            assertPart(rewrites._parts.get(0), 0, -1, false, null, Collections.singletonList("a"));
+            assertPart(rewrites._parts.get(1), 1, 0, false, null, Arrays.asList("a", "c"));
+            assertPart(rewrites._parts.get(2), 2, -1, true, null, Collections.singletonList("a"));
+
+            assertQuery("{ a { ... @skip(if: true) { name c { ... { d } } } e @skip(if: true) { id } } }", rewrites._initialQuery);
+            assertQuery("{ a { ... { name c { __typename } } } }", rewrites._partQueries.get(0));
+            assertQuery("{ a { ... { c { ... { d } } } } }", rewrites._partQueries.get(1));
+            assertQuery("{ a { e { id } } }", rewrites._partQueries.get(2));
+            assertEquals(new HashSet<>(Arrays.asList("/a", "/a/c")), rewrites._replayPaths);
+        }
+
+        @Test
+        public void testFragmentSpreads()
+        {
+            GraphQLIncrementalWriter writer = create("query { a { ...F @defer @include(if: true) } b { ...G @defer } } fragment F on A { name } fragment G on B { id }", null);
+            Rewrites rewrites = writer._rewrites;
+
+            assertEquals(2, writer.getPartCount());
+            assertQuery("query { a { ...F @skip(if: true) } b { ...G @skip(if: true) } } fragment F on A { name } fragment G on B { id }", rewrites._initialQuery);
+            assertQuery("query { a { ...F @include(if: true) } } fragment F on A { name }", rewrites._partQueries.get(0));
+            assertQuery("query { b { ...G } } fragment G on B { id }", rewrites._partQueries.get(1));
+
+            try
+            {
+                create("query { a { ...F } } fragment F on A { name ... @defer { id } }", null);
+                fail("Expected @defer in a fragment definition to be rejected");
+            }
+            catch (IllegalArgumentException expected)
+            {
+            }
+        }
+
+        @Test
+        public void testUnusedVariables()
+        {
+            String query = "query Q($x: Int, $y: Int, $d: Boolean) { a(first: $x) { id ... @defer(if: $d) { name } } b @stream { c(first: $y) { id } } }";
+
+            GraphQLIncrementalWriter writer = create(query, variables("x", 1, "y", 2, "d", true));
+            Rewrites rewrites = writer._rewrites;
+            assertEquals(2, writer.getPartCount());
+            assertQuery("query Q($x: Int, $y: Int) { a(first: $x) { id ... { name } } b { c(first: $y) { id } } }", writer.getFullQuery());
+            assertQuery("query Q($x: Int, $y: Int) { a(first: $x) { id ... @skip(if: true) { name } } b @skip(if: true) { c(first: $y) { id } } }", rewrites._initialQuery);
+            assertQuery("query Q($x: Int) { a(first: $x) { ... { name } } }", rewrites._partQueries.get(0));
+            assertQuery("query Q($y: Int) { b { c(first: $y) { id } } }", rewrites._partQueries.get(1));
+
+            // other values of the variables that aren't in the directives share the rewrites; a disabled @defer doesn't
+            assertSame(rewrites, create(query, variables("x", 5, "y", 6, "d", true))._rewrites);
+            GraphQLIncrementalWriter disabled = create(query, variables("x", 1, "y", 2, "d", false));
+            assertNotSame(rewrites, disabled._rewrites);
+            assertEquals(1, disabled.getPartCount());
+            assertTrue(disabled._rewrites._parts.get(0)._stream);
+        }
+
+        @Test
+        public void testMaxParts()
+        {
+            StringBuilder query = new StringBuilder("{ a { id");
+            for (int i = 0; i <= MAX_PARTS; i++)
+                query.append(" ... @defer { f").append(i).append(" }");
+            query.append(" } }");
+
+            try
+            {
+                create(query.toString(), null);
+                fail("Expected a query with more than " + MAX_PARTS + " parts to be rejected");
+            }
+            catch (IllegalArgumentException expected)
+            {
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.ExecutionResult;
+import graphql.execution.instrumentation.InstrumentationContext;
+import graphql.execution.instrumentation.NoOpInstrumentation;
+import graphql.execution.instrumentation.parameters.InstrumentationExecutionParameters;
+import graphql.execution.instrumentation.parameters.InstrumentationFieldFetchParameters;
+import graphql.schema.DataFetcher;
+import graphql.schema.DataFetchingEnvironment;
+import graphql.schema.GraphQLType;
+import graphql.schema.PropertyDataFetcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Records the resolver time of each field and the SQL statements and rows each field causes into
+ * {@link GraphQLMetrics}.  Create one per request.
+ *
+ * The SQL of a lookup runs inside whichever field's fetcher dispatches the DataLoader, possibly on
+ * {@link GraphQLExecutor}'s threads, so the field being resolved is tracked in a thread local that
+ * {@link GraphQLExecutor#async} carries over to the executor.  Data fetchers call {@link #recordSql} after
+ * each select.  Fields read straight from the row (PropertyDataFetcher and GraphQLRow.ColumnFetcher) aren't timed.
+ *
+ * With a {@link GraphQLTrace}, each resolved path and its SQL are also added to the request's trace.
+ */
+public class GraphQLInstrumentation extends NoOpInstrumentation
+{
+    private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<>();
+
+    private final AtomicLong _sqlStatements = new AtomicLong();
+    private final AtomicLong _sqlRows = new AtomicLong();
+    private final GraphQLTrace _trace;
+
+    public GraphQLInstrumentation()
+    {
+        this(null);
+    }
+
+    public GraphQLInstrumentation(@Nullable GraphQLTrace trace)
+    {
+        _trace = trace;
+    }
+
+    /** The request and field whose fetcher is running on this thread. */
+    public static class Scope
+    {
+        private final GraphQLInstrumentation _instrumentation;
+        private final String _field;
+        private final GraphQLTrace.Field _traced;
+
+        Scope(@NotNull GraphQLInstrumentation instrumentation, @NotNull String field, @Nullable GraphQLTrace.Field traced)
+        {
+            _instrumentation = instrumentation;
+            _field = field;
+            _traced = traced;
+        }
+
+        private void end(long start)
+        {
+            GraphQLMetrics.recordField(_field, System.nanoTime() - start);
+            if (_traced != null)
+                _instrumentation._trace.endField(_traced);
+        }
+    }
+
+    @Nullable
+    public static Scope getScope()
+    {
+        return CURRENT.get();
+    }
+
+    /**
+     * Make the scope current while the supplier runs, e.g. on another thread.
+     */
+    public static <T> T getInScope(@Nullable Scope scope, @NotNull Supplier<T> supplier)
+    {
+        Scope previous = CURRENT.get();
+        CURRENT.set(scope);
+        try
+        {
+            return supplier.get();
+        }
+        finally
+        {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Record a select issued by the current field.
+     *
+     * @param sql the SQL text, only computed if the request is traced
+     * @param start System.nanoTime() when the select started
+     */
+    public static void recordSql(@Nullable Supplier<String> sql, int rows, long start)
+    {
+        long nanos = System.nanoTime() - start;
+        Scope scope = CURRENT.get();
+        GraphQLMetrics.recordSql(scope != null ? scope._field : null, rows, nanos);
+        if (scope != null)
+        {
+            GraphQLInstrumentation instrumentation = scope._instrumentation;
+            instrumentation._sqlStatements.incrementAndGet();
+            instrumentation._sqlRows.addAndGet(rows);
+            if (instrumentation._trace != null)
+                instrumentation._trace.addSql(scope._traced, sql != null ? sql.get() : null, rows, nanos);
+        }
+    }
+
+    public long getSqlStatements()
+    {
+        return _sqlStatements.get();
+    }
+
+    public long getSqlRows()
+    {
+        return _sqlRows.get();
+    }
+
+    @Override
+    public InstrumentationContext<ExecutionResult> beginExecution(InstrumentationExecutionParameters parameters)
+    {
+        long start = System.nanoTime();
+        long statements = _sqlStatements.get();
+        return (result, t) -> {
+            GraphQLMetrics.recordPhase(GraphQLMetrics.EXECUTE, System.nanoTime() - start);
+            GraphQLMetrics.recordRequestSql(_sqlStatements.get() - statements);
+        };
+    }
+
+    @Override
+    public DataFetcher<?> instrumentDataFetcher(DataFetcher<?> dataFetcher, InstrumentationFieldFetchParameters parameters)
+    {
+        if (dataFetcher instanceof PropertyDataFetcher || dataFetcher instanceof GraphQLRow.ColumnFetcher)
+            return dataFetcher;
+
+        return env -> {
+            String field = getFieldName(env);
+            GraphQLTrace.Field traced = _trace != null ? _trace.beginField(env.getFieldTypeInfo().getPath().toString(), field) : null;
+            Scope scope = new Scope(this, field, traced);
+            long start = System.nanoTime();
+
+            Object value;
+            Scope previous = CURRENT.get();
+            CURRENT.set(scope);
+            try
+            {
+                GraphQLIncrementalWriter.Replay replay = env.getContext() instanceof GraphQLRequestContext ? ((GraphQLRequestContext)env.getContext()).getReplay() : null;
+                value = replay != null ? replay.fetch(env, dataFetcher) : dataFetcher.get(env);
+            }
+            catch (RuntimeException | Error e)
+            {
+                scope.end(start);
+                throw e;
+            }
+            finally
+            {
+                CURRENT.set(previous);
+            }
+
+            if (value instanceof CompletionStage)
+                return ((CompletionStage<?>)value).whenComplete((result, t) -> scope.end(start));
+
+            scope.end(start);
+            return value;
+        };
+    }
+
+    // e.g. "core__Users.CreatedBy"
+    private static String getFieldName(DataFetchingEnvironment env)
+    {
+        GraphQLType parent = env.getParentType();
+        return (parent != null ? parent.getName() : "?") + "." + env.getFieldDefinition().getName();
+    }
+}
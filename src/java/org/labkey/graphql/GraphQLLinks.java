@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLList;
+import graphql.schema.GraphQLNonNull;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLTypeReference;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.AbstractTableInfo;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.util.StringExpression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static graphql.Scalars.GraphQLString;
+import static graphql.schema.GraphQLArgument.newArgument;
+import static graphql.schema.GraphQLFieldDefinition.newFieldDefinition;
+import static graphql.schema.GraphQLObjectType.newObject;
+
+/**
+ * The "links" field of table types: the table's details and update URLs rendered for each row.
+ *
+ * The URL templates are resolved once, when the table's type is built, and each row just evaluates them.
+ * Links are returned as small immutable {@link Link} objects read directly by the link type's fetchers.
+ * The 'rel' argument limits the links to the given rels, so unwanted URLs aren't evaluated at all.
+ */
+public class GraphQLLinks
+{
+    public static final String LINK_TYPE_NAME = "link";
+
+    // Shared by all schemas, so there must be only one instance
+    private static final GraphQLObjectType LINK_TYPE = newObject()
+            .name(LINK_TYPE_NAME)
+            .field(newFieldDefinition()
+                    .name("rel")
+                    .type(GraphQLString)
+                    .dataFetcher(env -> ((Link)env.getSource()).getRel())
+                    .build()
+            )
+            .field(newFieldDefinition()
+                    .name("href")
+                    .type(GraphQLString)
+                    .dataFetcher(env -> ((Link)env.getSource()).getHref())
+                    .build()
+            )
+            .build();
+
+    private GraphQLLinks()
+    {
+    }
+
+    public static GraphQLObjectType getLinkType()
+    {
+        return LINK_TYPE;
+    }
+
+    public static class Link
+    {
+        private final String _rel;
+        private final String _href;
+
+        public Link(String rel, String href)
+        {
+            _rel = rel;
+            _href = href;
+        }
+
+        public String getRel()
+        {
+            return _rel;
+        }
+
+        public String getHref()
+        {
+            return _href;
+        }
+    }
+
+    private static class LinkTemplate
+    {
+        final String _rel;
+        final StringExpression _url;
+
+        LinkTemplate(String rel, StringExpression url)
+        {
+            _rel = rel;
+            _url = url;
+        }
+    }
+
+    public static GraphQLFieldDefinition createLinksField(@NotNull TableInfo table)
+    {
+        List<LinkTemplate> templates = new ArrayList<>(2);
+        addTemplate(templates, "details", table.getDetailsURL(null, null));
+        // TODO: Doesn't render default update links if table is insertable
+        addTemplate(templates, "update", table.getUpdateURL(null, null));
+
+        return newFieldDefinition()
+                .name("links")
+                .type(new GraphQLList(new GraphQLNonNull(new GraphQLTypeReference(LINK_TYPE_NAME))))
+                .argument(newArgument()
+                        .name("rel")
+                        .description("Only return links with these rels, e.g. [\"details\"]")
+                        .type(new GraphQLList(new GraphQLNonNull(GraphQLString)))
+                        .build())
+                .dataFetcher(env -> {
+                    Object source = env.getSource();
+                    if (!(source instanceof Map))
+                        return null;
+                    if (templates.isEmpty())
+                        return Collections.emptyList();
+
+                    Map<String, Object> row = (Map<String, Object>)source;
+                    List<String> rels = env.getArgument("rel");
+
+                    List<Link> links = new ArrayList<>(templates.size());
+                    for (LinkTemplate template : templates)
+                    {
+                        if (rels == null || rels.contains(template._rel))
+                            links.add(new Link(template._rel, template._url.eval(row)));
+                    }
+                    return links;
+                })
+                .build();
+    }
+
+    private static void addTemplate(List<LinkTemplate> templates, String rel, @Nullable StringExpression url)
+    {
+        if (url != null && url != AbstractTableInfo.LINK_DISABLER)
+            templates.add(new LinkTemplate(rel, url));
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.cache.StringKeyCache;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.query.UserSchema;
+import org.labkey.api.security.User;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Caches lookup rows of small, rarely changing tables (core.Users and core.Containers) across requests.
+ *
+ * The rows a user can see in these tables, and which of their columns have values, depend on the user's folder
+ * and site roles, so entries are keyed by the lookup table's container, the user and the user's permissions
+ * there and at the site level, as well as by the selected columns and the key.  Entries expire after a few minutes and are removed when users or containers change
+ * (see {@link GraphQLUserListener} and {@link GraphQLContainerListener}).
+ */
+public class GraphQLLookupCache
+{
+    private static final StringKeyCache<Map<String, Object>> ROW_CACHE = CacheManager.getStringKeyCache(10000, 5 * CacheManager.MINUTE, "GraphQL lookup rows");
+
+    // "<schema>.<table>" of the tables to cache
+    private static final List<String> CACHED_TABLES = Arrays.asList("core.Users", "core.Containers");
+    private static final String USERS = "core.Users";
+    private static final String CONTAINERS = "core.Containers";
+
+    private static final AtomicLong REQUESTS = new AtomicLong();
+    private static final AtomicLong HITS = new AtomicLong();
+
+    private GraphQLLookupCache()
+    {
+    }
+
+    @Nullable
+    private static String getTableKey(TableInfo table)
+    {
+        UserSchema schema = table.getUserSchema();
+        if (schema == null)
+            return null;
+
+        String tableKey = schema.getSchemaName() + "." + table.getName();
+        for (String cached : CACHED_TABLES)
+        {
+            if (cached.equalsIgnoreCase(tableKey))
+                return cached;
+        }
+        return null;
+    }
+
+    public static boolean isCached(@NotNull TableInfo lookupTable)
+    {
+        return getTableKey(lookupTable) != null;
+    }
+
+    // Key is "<schema>.<table>/<container id>/<user id>/<permissions>/<site permissions>/<lookup column>/<columns>/" so entries
+    // can be removed by table and container prefix.  Which user details are visible (e.g. Email) depends on site roles as
+    // well as folder roles, so rows are cached per user, and the permissions make a role change a miss.
+    private static String getKeyPrefix(TableInfo lookupTable, ColumnInfo lookupColumn, @Nullable List<ColumnInfo> columns)
+    {
+        UserSchema schema = lookupTable.getUserSchema();
+        User user = schema.getUser();
+        String columnNames = columns == null ? "*" : columns.stream().map(ColumnInfo::getName).sorted().collect(Collectors.joining(","));
+        return getTableKey(lookupTable) + "/" + schema.getContainer().getId() + "/" + user.getUserId() + "/" +
+                GraphQLSchemaCache.getPermissionsKey(schema.getContainer(), user) + "/" +
+                GraphQLSchemaCache.getPermissionsKey(ContainerManager.getRoot(), user) + "/" +
+                lookupColumn.getName() + "/" + columnNames + "/";
+    }
+
+    /**
+     * Get the cached rows for the keys.  Keys that aren't cached are omitted from the result.
+     * The lookup table must be bound to the requesting user.
+     */
+    @NotNull
+    public static Map<Object, Map<String, Object>> get(@NotNull TableInfo lookupTable, @NotNull ColumnInfo lookupColumn, @Nullable List<ColumnInfo> columns, @NotNull Collection<Object> keys)
+    {
+        Map<Object, Map<String, Object>> ret = new HashMap<>();
+        if (!isCached(lookupTable))
+            return ret;
+
+        String prefix = getKeyPrefix(lookupTable, lookupColumn, columns);
+        for (Object key : keys)
+        {
+            REQUESTS.incrementAndGet();
+            Map<String, Object> row = ROW_CACHE.get(prefix + key);
+            if (row != null)
+            {
+                HITS.incrementAndGet();
+                // rows are tracked by identity within a request, so each request gets its own copy
+                ret.put(key, new CaseInsensitiveHashMap<>(row));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Cache the rows loaded for the keys.  Keys without a row aren't cached, so new users and containers
+     * are found as soon as they're created.
+     */
+    public static void put(@NotNull TableInfo lookupTable, @NotNull ColumnInfo lookupColumn, @Nullable List<ColumnInfo> columns, @NotNull Map<Object, Map<String, Object>> rowsByKey)
+    {
+        if (!isCached(lookupTable))
+            return;
+
+        String prefix = getKeyPrefix(lookupTable, lookupColumn, columns);
+        for (Map.Entry<Object, Map<String, Object>> entry : rowsByKey.entrySet())
+        {
+            if (entry.getValue() != null)
+                ROW_CACHE.put(prefix + entry.getKey(), new CaseInsensitiveHashMap<>(entry.getValue()));
+        }
+    }
+
+    public static void uncacheUsers()
+    {
+        ROW_CACHE.removeUsingPrefix(USERS + "/");
+    }
+
+    /**
+     * Remove the container's rows, and the cached rows of any container, since names and paths of
+     * other containers may change along with it.
+     */
+    public static void uncache(@NotNull Container c)
+    {
+        ROW_CACHE.removeUsingPrefix(USERS + "/" + c.getId() + "/");
+        ROW_CACHE.removeUsingPrefix(CONTAINERS + "/");
+    }
+
+    public static void clear()
+    {
+        ROW_CACHE.clear();
+    }
+
+    public static long getRequestCount()
+    {
+        return REQUESTS.get();
+    }
+
+    public static long getHitCount()
+    {
+        return HITS.get();
+    }
+
+    public static long getMissCount()
+    {
+        return REQUESTS.get() - HITS.get();
+    }
+}
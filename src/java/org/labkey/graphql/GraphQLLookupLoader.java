@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.language.Field;
+import org.dataloader.BatchLoader;
+import org.dataloader.DataLoader;
+import org.dataloader.DataLoaderOptions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Batches single-valued lookups: keys requested by sibling rows are collected and
+ * resolved with one "lookupColumn IN (...)" query per lookup table and batch.  Lookups of several columns of the
+ * sibling rows into the same table (e.g. CreatedBy and ModifiedBy) share a loader, see {@link GraphQLRequestContext#getLookupGroup}.
+ * The DataLoader's own cache de-duplicates keys for one loader, and rows already loaded by other loaders
+ * of the same table are reused from the request's lookup memo (see {@link GraphQLRequestContext#getMemoizedLookups}).
+ */
+public class GraphQLLookupLoader implements BatchLoader<Object, Map<String, Object>>
+{
+    private final GraphQLRequestContext _ctx;
+    private final TableInfo _lookupTable;
+    private final ColumnInfo _lookupColumn;
+    private final @Nullable List<ColumnInfo> _columns;
+    private final @Nullable Map<String, List<Field>> _selected;
+
+    private GraphQLLookupLoader(GraphQLRequestContext ctx, TableInfo lookupTable, ColumnInfo lookupColumn, @Nullable List<ColumnInfo> columns, @Nullable Map<String, List<Field>> selected)
+    {
+        _ctx = ctx;
+        _selected = selected;
+        _lookupTable = lookupTable;
+        _lookupColumn = lookupColumn;
+
+        // the lookup column is needed to match rows back to their keys
+        if (columns != null && !columns.contains(lookupColumn))
+        {
+            columns = new ArrayList<>(columns);
+            columns.add(lookupColumn);
+        }
+        _columns = columns;
+    }
+
+    /**
+     * @param columns the columns to select, or null for all columns
+     * @param selected the fields selected from the loaded rows, if known, so their own lookups can be grouped
+     */
+    public static DataLoader<Object, Map<String, Object>> create(@NotNull GraphQLRequestContext ctx, @NotNull TableInfo lookupTable, @NotNull ColumnInfo lookupColumn,
+                                                                 @Nullable List<ColumnInfo> columns, @Nullable Map<String, List<Field>> selected)
+    {
+        DataLoaderOptions options = DataLoaderOptions.newOptions()
+                .setMaxBatchSize(ctx.getMaxBatchSize());
+        return new DataLoader<>(new GraphQLLookupLoader(ctx, lookupTable, lookupColumn, columns, selected), options);
+    }
+
+    @Override
+    public CompletableFuture<List<Map<String, Object>>> load(List<Object> keys)
+    {
+        // rows another loader already resolved in this request (e.g., CreatedBy and ModifiedBy selecting different columns)
+        Map<Object, Map<String, Object>> rowsByKey = new HashMap<>(_ctx.getMemoizedLookups(_lookupTable, _lookupColumn, _columns, keys));
+
+        List<Object> missing = new ArrayList<>(keys.size());
+        for (Object key : keys)
+        {
+            if (!rowsByKey.containsKey(key))
+                missing.add(key);
+        }
+
+        // rows of small, shared tables (e.g., core.Users) cached across requests
+        if (!missing.isEmpty() && GraphQLLookupCache.isCached(_lookupTable))
+        {
+            Map<Object, Map<String, Object>> cached = GraphQLLookupCache.get(_lookupTable, _lookupColumn, _columns, missing);
+            if (!cached.isEmpty())
+            {
+                _ctx.addSiblings(new ArrayList<>(cached.values()), _selected);
+                _ctx.memoizeLookups(_lookupTable, _lookupColumn, _columns, new ArrayList<>(cached.keySet()), cached);
+                rowsByKey.putAll(cached);
+                missing.removeAll(cached.keySet());
+            }
+        }
+
+        if (!missing.isEmpty())
+        {
+            SimpleFilter filter = new SimpleFilter();
+            filter.addInClause(_lookupColumn.getFieldKey(), missing);
+
+            long start = System.nanoTime();
+            TableSelector ts = _columns != null
+                    ? new TableSelector(_lookupTable, _columns, filter, null)
+                    : new TableSelector(_lookupTable, filter, null);
+            List<Map<String, Object>> rows = GraphQLRow.select(ts);
+            GraphQLInstrumentation.recordSql(GraphQLTrace.describe(_lookupTable, _columns, filter, null), rows.size(), start);
+
+            // the loaded rows are siblings of each other for any nested lookups
+            List<Map<String, Object>> siblings = rows;
+            _ctx.addSiblings(siblings, _selected);
+
+            Map<Object, Map<String, Object>> loaded = new HashMap<>();
+            for (Map<String, Object> row : siblings)
+                loaded.put(normalizeKey(row.get(_lookupColumn.getName())), row);
+
+            _ctx.memoizeLookups(_lookupTable, _lookupColumn, _columns, missing, loaded);
+            GraphQLLookupCache.put(_lookupTable, _lookupColumn, _columns, loaded);
+            for (Object key : missing)
+                rowsByKey.put(key, loaded.get(key));
+        }
+
+        // DataLoader expects values in the same order as the keys
+        List<Map<String, Object>> ret = new ArrayList<>(keys.size());
+        for (Object key : keys)
+            ret.add(rowsByKey.get(key));
+
+        return CompletableFuture.completedFuture(ret);
+    }
+
+    /**
+     * Lookup values and the parent's foreign key values may be read as different Java types (e.g., Integer and Long).
+     */
+    @Nullable
+    public static Object normalizeKey(@Nullable Object key)
+    {
+        if (key instanceof Integer || key instanceof Long || key instanceof Short || key instanceof Byte)
+            return ((Number)key).longValue();
+        if (key instanceof BigDecimal && ((BigDecimal)key).scale() <= 0)
+            return ((BigDecimal)key).longValue();
+        return key;
+    }
+}
@@ -16,10 +16,35 @@
 
 package org.labkey.graphql;
 
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.cache.StringKeyCache;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.module.ModuleLoader;
+import org.labkey.api.module.ModuleProperty;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.security.User;
+import org.labkey.api.security.roles.Role;
+
+import java.util.HashSet;
+import java.util.Set;
+
 public class GraphQLManager
 {
     private static final GraphQLManager _instance = new GraphQLManager();
 
+    // Keyed by "<container id>/<rowid or hash>"
+    private static final StringKeyCache<PersistedQuery> PERSISTED_QUERY_CACHE = CacheManager.getStringKeyCache(1000, CacheManager.DAY, "GraphQL persisted queries");
+
+    private static final int HASH_LENGTH = 64;
+
     private GraphQLManager()
     {
         // prevent external construction with a private default constructor
@@ -29,4 +54,194 @@ public class GraphQLManager
     {
         return _instance;
     }
-}
\ No newline at end of file
+
+    private TableInfo getTinfoPersistedQuery()
+    {
+        return GraphQLSchema.getInstance().getTableInfoPersistedQuery();
+    }
+
+    /**
+     * Find a persisted query by RowId or by the SHA-256 hash of the query text.  Only queries that are found are
+     * cached, so a query registered after a failed lookup is found by the next one.
+     */
+    @Nullable
+    public PersistedQuery getPersistedQuery(@NotNull Container c, @NotNull String idOrHash)
+    {
+        String key = idOrHash.length() == HASH_LENGTH ? idOrHash.toLowerCase() : idOrHash;
+        String cacheKey = c.getId() + "/" + key;
+        PersistedQuery pq = PERSISTED_QUERY_CACHE.get(cacheKey);
+        if (pq != null)
+            return pq;
+
+        SimpleFilter filter = SimpleFilter.createContainerFilter(c);
+        if (key.length() == HASH_LENGTH)
+        {
+            filter.addCondition(FieldKey.fromParts("Hash"), key);
+        }
+        else
+        {
+            try
+            {
+                filter.addCondition(FieldKey.fromParts("RowId"), Integer.parseInt(key));
+            }
+            catch (NumberFormatException e)
+            {
+                return null;
+            }
+        }
+
+        pq = new TableSelector(getTinfoPersistedQuery(), filter, null).getObject(PersistedQuery.class);
+        if (pq != null)
+            PERSISTED_QUERY_CACHE.put(cacheKey, pq);
+        return pq;
+    }
+
+    /**
+     * Save the query text, or return the existing persisted query if the same text has already been registered.
+     */
+    @NotNull
+    public PersistedQuery registerQuery(@NotNull Container c, @NotNull User user, @Nullable String name, @NotNull String query)
+    {
+        String hash = GraphQLDocumentCache.hash(query);
+
+        PersistedQuery existing = getPersistedQuery(c, hash);
+        if (existing != null)
+            return existing;
+
+        PersistedQuery pq = new PersistedQuery();
+        pq.setContainer(c.getId());
+        pq.setName(name);
+        pq.setHash(hash);
+        pq.setQuery(query);
+        pq = Table.insert(user, getTinfoPersistedQuery(), pq);
+
+        PERSISTED_QUERY_CACHE.remove(c.getId() + "/" + hash);
+        PERSISTED_QUERY_CACHE.remove(c.getId() + "/" + pq.getRowId());
+        return pq;
+    }
+
+    @Nullable
+    private String getModuleProperty(@NotNull Container c, @NotNull String name)
+    {
+        ModuleProperty prop = ModuleLoader.getInstance().getModule(GraphQLModule.NAME).getModuleProperties().get(name);
+        return prop != null ? prop.getEffectiveValue(c) : null;
+    }
+
+    private int getIntModuleProperty(@NotNull Container c, @NotNull String name, int defaultValue)
+    {
+        String value = getModuleProperty(c, name);
+        if (StringUtils.isBlank(value))
+            return defaultValue;
+
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return defaultValue;
+        }
+    }
+
+    public boolean isPersistedQueriesOnly(@NotNull Container c)
+    {
+        return Boolean.parseBoolean(getModuleProperty(c, GraphQLModule.PERSISTED_QUERIES_ONLY));
+    }
+
+    public int getMaxBatchSize(@NotNull Container c)
+    {
+        return Math.max(1, getIntModuleProperty(c, GraphQLModule.MAX_BATCH_SIZE, 1000));
+    }
+
+    public int getMutationChunkSize(@NotNull Container c)
+    {
+        return Math.max(1, getIntModuleProperty(c, GraphQLModule.MUTATION_CHUNK_SIZE, 500));
+    }
+
+    public boolean isResultCache(@NotNull Container c)
+    {
+        return Boolean.parseBoolean(getModuleProperty(c, GraphQLModule.RESULT_CACHE));
+    }
+
+    public boolean isConditionalGet(@NotNull Container c)
+    {
+        return Boolean.parseBoolean(getModuleProperty(c, GraphQLModule.CONDITIONAL_GET));
+    }
+
+    public boolean isParallelExecution(@NotNull Container c)
+    {
+        return Boolean.parseBoolean(getModuleProperty(c, GraphQLModule.PARALLEL_EXECUTION));
+    }
+
+    public int getMaxConcurrency(@NotNull Container c)
+    {
+        return Math.max(1, getIntModuleProperty(c, GraphQLModule.MAX_CONCURRENCY, 4));
+    }
+
+    public int getExecutorThreads()
+    {
+        return Math.max(1, getIntModuleProperty(ContainerManager.getRoot(), GraphQLModule.EXECUTOR_THREADS, 16));
+    }
+
+    public boolean isVirtualThreads()
+    {
+        return Boolean.parseBoolean(getModuleProperty(ContainerManager.getRoot(), GraphQLModule.VIRTUAL_THREADS));
+    }
+
+    /**
+     * Get the query depth and cost limits for the user: the most generous QueryLimits entry matching the user's
+     * email or one of the user's roles in the container, or else MaxQueryDepth and MaxQueryCost.
+     */
+    public GraphQLCostAnalyzer.Limits getQueryLimits(@NotNull Container c, @NotNull User user)
+    {
+        Set<String> names = new HashSet<>();
+        if (user.getEmail() != null)
+            names.add(user.getEmail().toLowerCase());
+        for (Role role : c.getPolicy().getEffectiveRoles(user))
+            names.add(role.getName().toLowerCase());
+
+        GraphQLCostAnalyzer.Limits ret = null;
+        String entries = getModuleProperty(c, GraphQLModule.QUERY_LIMITS);
+        if (entries != null)
+        {
+            for (String entry : entries.split("[\\r\\n;]+"))
+            {
+                String[] parts = entry.split("=", 2);
+                if (parts.length != 2 || !names.contains(parts[0].trim().toLowerCase()))
+                    continue;
+
+                String[] limits = parts[1].split(",");
+                if (limits.length != 2)
+                    continue;
+
+                try
+                {
+                    int maxDepth = Integer.parseInt(limits[0].trim());
+                    long maxCost = Long.parseLong(limits[1].trim());
+                    if (ret != null)
+                    {
+                        maxDepth = Math.max(maxDepth, ret.getMaxDepth());
+                        maxCost = Math.max(maxCost, ret.getMaxCost());
+                    }
+                    ret = new GraphQLCostAnalyzer.Limits(maxDepth, maxCost);
+                }
+                catch (NumberFormatException e)
+                {
+                    // ignore malformed entries
+                }
+            }
+        }
+
+        if (ret == null)
+            ret = new GraphQLCostAnalyzer.Limits(
+                    getIntModuleProperty(c, GraphQLModule.MAX_QUERY_DEPTH, 10),
+                    getIntModuleProperty(c, GraphQLModule.MAX_QUERY_COST, 100000));
+        return ret;
+    }
+
+    public void deleteAllData(@NotNull Container c)
+    {
+        Table.delete(getTinfoPersistedQuery(), SimpleFilter.createContainerFilter(c));
+        PERSISTED_QUERY_CACHE.removeUsingPrefix(c.getId() + "/");
+    }
+}
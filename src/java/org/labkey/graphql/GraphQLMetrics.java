@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Server-wide execution metrics: histograms of the time spent in each phase of a request (schema build, parse,
+ * validate and execute), of the SQL statements issued per request, and of the resolver time of each field,
+ * along with the SQL statements and rows each field caused.  Collected by {@link GraphQLInstrumentation} and
+ * reported by the admin stats action.
+ */
+public class GraphQLMetrics
+{
+    public static final String SCHEMA_BUILD = "schemaBuild";
+    public static final String PARSE = "parse";
+    public static final String VALIDATE = "validate";
+    public static final String EXECUTE = "execute";
+
+    // fields of types that are created per table, so bound the number tracked
+    private static final int MAX_FIELDS = 2000;
+    private static final String OTHER_FIELDS = "(other)";
+
+    private static final Map<String, Histogram> PHASES = new ConcurrentHashMap<>();
+    private static final Map<String, FieldStats> FIELDS = new ConcurrentHashMap<>();
+    private static final Histogram SQL_PER_REQUEST = new Histogram();
+    private static final AtomicLong SQL_STATEMENTS = new AtomicLong();
+    private static final AtomicLong SQL_ROWS = new AtomicLong();
+    private static final AtomicLong SQL_NANOS = new AtomicLong();
+
+    private GraphQLMetrics()
+    {
+    }
+
+    /**
+     * Counts of values in power-of-two buckets, so percentiles are approximate (within a factor of two) but
+     * recording is just an increment.
+     */
+    public static class Histogram
+    {
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong _count = new AtomicLong();
+        private final AtomicLong _sum = new AtomicLong();
+        private final AtomicLong _max = new AtomicLong();
+
+        public void record(long value)
+        {
+            value = Math.max(0, value);
+            _buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+            _count.incrementAndGet();
+            _sum.addAndGet(value);
+            _max.accumulateAndGet(value, Math::max);
+        }
+
+        public long getCount()
+        {
+            return _count.get();
+        }
+
+        public long getSum()
+        {
+            return _sum.get();
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the percentile, at most the largest value recorded
+         */
+        public long getPercentile(double percentile)
+        {
+            long count = _count.get();
+            if (count == 0)
+                return 0;
+
+            long rank = (long)Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                seen += _buckets.get(i);
+                if (seen >= rank)
+                    return Math.min(_max.get(), i == 0 ? 0 : (1L << i) - 1);
+            }
+            return _max.get();
+        }
+
+        public Map<String, Object> toMap()
+        {
+            long count = _count.get();
+            Map<String, Object> ret = new LinkedHashMap<>();
+            ret.put("count", count);
+            ret.put("sum", _sum.get());
+            ret.put("mean", count == 0 ? 0 : _sum.get() / count);
+            ret.put("p50", getPercentile(50));
+            ret.put("p90", getPercentile(90));
+            ret.put("p99", getPercentile(99));
+            ret.put("max", _max.get());
+            return ret;
+        }
+    }
+
+    /** Resolver time (in microseconds), SQL statements and rows of one field, e.g. "core__Users.CreatedBy". */
+    public static class FieldStats
+    {
+        private final String _field;
+        private final Histogram _micros = new Histogram();
+        private final AtomicLong _sqlStatements = new AtomicLong();
+        private final AtomicLong _sqlRows = new AtomicLong();
+
+        FieldStats(String field)
+        {
+            _field = field;
+        }
+
+        public Map<String, Object> toMap()
+        {
+            Map<String, Object> ret = new LinkedHashMap<>();
+            ret.put("field", _field);
+            ret.put("micros", _micros.toMap());
+            ret.put("sqlStatements", _sqlStatements.get());
+            ret.put("sqlRows", _sqlRows.get());
+            return ret;
+        }
+    }
+
+    @NotNull
+    private static FieldStats getFieldStats(@NotNull String field)
+    {
+        FieldStats stats = FIELDS.get(field);
+        if (stats != null)
+            return stats;
+        if (FIELDS.size() >= MAX_FIELDS)
+            field = OTHER_FIELDS;
+        return FIELDS.computeIfAbsent(field, FieldStats::new);
+    }
+
+    public static void recordPhase(@NotNull String phase, long nanos)
+    {
+        PHASES.computeIfAbsent(phase, p -> new Histogram()).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public static void recordField(@NotNull String field, long nanos)
+    {
+        getFieldStats(field)._micros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Record a SQL statement.
+     * @param field the field that issued it, if known
+     */
+    public static void recordSql(@Nullable String field, int rows, long nanos)
+    {
+        SQL_STATEMENTS.incrementAndGet();
+        SQL_ROWS.addAndGet(rows);
+        SQL_NANOS.addAndGet(nanos);
+        if (field != null)
+        {
+            FieldStats stats = getFieldStats(field);
+            stats._sqlStatements.incrementAndGet();
+            stats._sqlRows.addAndGet(rows);
+        }
+    }
+
+    public static void recordRequestSql(long statements)
+    {
+        SQL_PER_REQUEST.record(statements);
+    }
+
+    /**
+     * Phase times in microseconds.
+     */
+    public static Map<String, Object> getPhases()
+    {
+        Map<String, Object> ret = new LinkedHashMap<>();
+        for (String phase : new String[]{SCHEMA_BUILD, PARSE, VALIDATE, EXECUTE})
+        {
+            Histogram histogram = PHASES.get(phase);
+            ret.put(phase, histogram != null ? histogram.toMap() : new Histogram().toMap());
+        }
+        return ret;
+    }
+
+    public static Map<String, Object> getSql()
+    {
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("statements", SQL_STATEMENTS.get());
+        ret.put("rows", SQL_ROWS.get());
+        ret.put("millis", TimeUnit.NANOSECONDS.toMillis(SQL_NANOS.get()));
+        ret.put("statementsPerRequest", SQL_PER_REQUEST.toMap());
+        return ret;
+    }
+
+    /**
+     * The fields with the most total resolver time.
+     */
+    public static List<Map<String, Object>> getHotFields(int limit)
+    {
+        List<FieldStats> fields = new ArrayList<>(FIELDS.values());
+        fields.sort(Comparator.comparingLong((FieldStats f) -> f._micros.getSum()).reversed());
+
+        List<Map<String, Object>> ret = new ArrayList<>();
+        for (FieldStats field : fields.subList(0, Math.min(limit, fields.size())))
+            ret.add(field.toMap());
+        return ret;
+    }
+}
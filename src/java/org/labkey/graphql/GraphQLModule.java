@@ -22,16 +22,34 @@ import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.module.DefaultModule;
 import org.labkey.api.module.ModuleContext;
+import org.labkey.api.module.ModuleProperty;
+import org.labkey.api.query.QueryService;
+import org.labkey.api.security.UserManager;
 import org.labkey.api.view.WebPartFactory;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
 
 public class GraphQLModule extends DefaultModule
 {
     public static final String NAME = "GraphQL";
 
+    public static final String PERSISTED_QUERIES_ONLY = "PersistedQueriesOnly";
+    public static final String MAX_BATCH_SIZE = "MaxBatchSize";
+    public static final String PARALLEL_EXECUTION = "ParallelExecution";
+    public static final String MAX_CONCURRENCY = "MaxConcurrency";
+    public static final String EXECUTOR_THREADS = "ExecutorThreads";
+    public static final String VIRTUAL_THREADS = "VirtualThreads";
+    public static final String MAX_QUERY_DEPTH = "MaxQueryDepth";
+    public static final String MAX_QUERY_COST = "MaxQueryCost";
+    public static final String QUERY_LIMITS = "QueryLimits";
+    public static final String MUTATION_CHUNK_SIZE = "MutationChunkSize";
+    public static final String RESULT_CACHE = "ResultCache";
+    public static final String CONDITIONAL_GET = "ConditionalGet";
+
     @Override
     public String getName()
     {
@@ -41,7 +59,7 @@ public class GraphQLModule extends DefaultModule
     @Override
     public @Nullable Double getSchemaVersion()
     {
-        return 16.20;
+        return 16.21;
     }
 
     @Override
@@ -57,10 +75,90 @@ public class GraphQLModule extends DefaultModule
         return Collections.emptyList();
     }
 
+    @Override
+    @NotNull
+    public Set<Class> getUnitTests()
+    {
+        return new HashSet<>(Arrays.asList(
+                GraphQLIncrementalWriter.TestCase.class,
+                GraphQLResultCache.TestCase.class));
+    }
+
     @Override
     protected void init()
     {
         addController(GraphQLController.NAME, GraphQLController.class);
+
+        ModuleProperty persistedOnly = new ModuleProperty(this, PERSISTED_QUERIES_ONLY);
+        persistedOnly.setDescription("When true, only queries registered with graphql-registerQuery.api may be executed in this folder.");
+        persistedOnly.setDefaultValue("false");
+        persistedOnly.setCanSetPerContainer(true);
+        addModuleProperty(persistedOnly);
+
+        ModuleProperty maxBatchSize = new ModuleProperty(this, MAX_BATCH_SIZE);
+        maxBatchSize.setDescription("Maximum number of keys resolved by a single batched lookup query.");
+        maxBatchSize.setDefaultValue("1000");
+        maxBatchSize.setCanSetPerContainer(false);
+        addModuleProperty(maxBatchSize);
+
+        ModuleProperty parallel = new ModuleProperty(this, PARALLEL_EXECUTION);
+        parallel.setDescription("When true, lookups and other fields that query the database are resolved concurrently on a shared executor.");
+        parallel.setDefaultValue("false");
+        parallel.setCanSetPerContainer(true);
+        addModuleProperty(parallel);
+
+        ModuleProperty maxConcurrency = new ModuleProperty(this, MAX_CONCURRENCY);
+        maxConcurrency.setDescription("Maximum number of fields a single request resolves concurrently when parallel execution is enabled.");
+        maxConcurrency.setDefaultValue("4");
+        maxConcurrency.setCanSetPerContainer(true);
+        addModuleProperty(maxConcurrency);
+
+        ModuleProperty executorThreads = new ModuleProperty(this, EXECUTOR_THREADS);
+        executorThreads.setDescription("Maximum number of fields resolved concurrently across all requests.  Changes take effect for new requests; requests already running finish on the previous threads.");
+        executorThreads.setDefaultValue("16");
+        executorThreads.setCanSetPerContainer(false);
+        addModuleProperty(executorThreads);
+
+        ModuleProperty virtualThreads = new ModuleProperty(this, VIRTUAL_THREADS);
+        virtualThreads.setDescription("When true and the JVM supports them, run parallel fields on virtual threads instead of a fixed thread pool.  Changes take effect for new requests.");
+        virtualThreads.setDefaultValue("false");
+        virtualThreads.setCanSetPerContainer(false);
+        addModuleProperty(virtualThreads);
+
+        ModuleProperty maxQueryDepth = new ModuleProperty(this, MAX_QUERY_DEPTH);
+        maxQueryDepth.setDescription("Maximum number of nested lookups in a query.");
+        maxQueryDepth.setDefaultValue("10");
+        maxQueryDepth.setCanSetPerContainer(true);
+        addModuleProperty(maxQueryDepth);
+
+        ModuleProperty maxQueryCost = new ModuleProperty(this, MAX_QUERY_COST);
+        maxQueryCost.setDescription("Maximum estimated cost of a query.  Scalar fields cost 1; lookups and list fields cost more, in proportion to the rows they may return, and mutations cost 1 per value of each row they are given.");
+        maxQueryCost.setDefaultValue("100000");
+        maxQueryCost.setCanSetPerContainer(true);
+        addModuleProperty(maxQueryCost);
+
+        ModuleProperty queryLimits = new ModuleProperty(this, QUERY_LIMITS);
+        queryLimits.setDescription("Limits for specific users or roles, one per line as '<email or role name>=<max depth>,<max cost>', e.g. 'Folder Administrator=20,1000000'.  The most generous matching entry applies; otherwise MaxQueryDepth and MaxQueryCost.");
+        queryLimits.setCanSetPerContainer(true);
+        addModuleProperty(queryLimits);
+
+        ModuleProperty mutationChunkSize = new ModuleProperty(this, MUTATION_CHUNK_SIZE);
+        mutationChunkSize.setDescription("Maximum number of rows passed to a table's update service in one call by an insert, update or delete mutation.");
+        mutationChunkSize.setDefaultValue("500");
+        mutationChunkSize.setCanSetPerContainer(true);
+        addModuleProperty(mutationChunkSize);
+
+        ModuleProperty resultCache = new ModuleProperty(this, RESULT_CACHE);
+        resultCache.setDescription("When true, query results are cached per user until a table they read changes, or for at most 10 minutes.  A query is cached from its second execution, and only if every table it reads has a Modified column; each hit first checks the tables' row counts and latest Modified values.");
+        resultCache.setDefaultValue("false");
+        resultCache.setCanSetPerContainer(true);
+        addModuleProperty(resultCache);
+
+        ModuleProperty conditionalGet = new ModuleProperty(this, CONDITIONAL_GET);
+        conditionalGet.setDescription("When true, GET requests for queries get an ETag and a 304 Not Modified response when the tables they read haven't changed.  Checking costs a COUNT(*) and MAX(Modified) query over each table the query reads, before every execution.");
+        conditionalGet.setDefaultValue("false");
+        conditionalGet.setCanSetPerContainer(true);
+        addModuleProperty(conditionalGet);
     }
 
     @Override
@@ -68,6 +166,21 @@ public class GraphQLModule extends DefaultModule
     {
         // add a container listener so we'll know when our container is deleted:
         ContainerManager.addContainerListener(new GraphQLContainerListener());
+
+        // drop cached GraphQL schemas when query metadata changes
+        QueryService.get().addQueryListener(new GraphQLQueryChangeListener());
+
+        // drop cached core.Users lookup rows when users change
+        UserManager.addUserListener(new GraphQLUserListener());
+    }
+
+    @Override
+    public void destroy()
+    {
+        super.destroy();
+
+        // stop the threads that resolve fields in parallel
+        GraphQLExecutor.shutdown();
     }
 
     @Override
@@ -81,6 +194,6 @@ public class GraphQLModule extends DefaultModule
     @NotNull
     public Set<String> getSchemaNames()
     {
-        return Collections.emptySet();
+        return Collections.singleton(GraphQLSchema.NAME);
     }
 }
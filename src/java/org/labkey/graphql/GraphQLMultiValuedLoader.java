@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import org.apache.commons.beanutils.ConvertUtils;
+import org.dataloader.BatchLoader;
+import org.dataloader.DataLoader;
+import org.dataloader.DataLoaderOptions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.ForeignKey;
+import org.labkey.api.data.MultiValuedForeignKey;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.TableInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Resolves a multi-valued foreign key for many parent rows at once: one junction query
+ * "WHERE j.key IN (...)" whose results are grouped back by the parent's key.
+ *
+ * If a select value column is given, each parent gets a list of that column's values (e.g., the title
+ * column for "Alias"); otherwise each parent gets a list of the value table's rows.
+ */
+public class GraphQLMultiValuedLoader implements BatchLoader<Object, List<Object>>
+{
+    // alias of the parent key in the junction query -- must not collide with a column of the value table
+    private static final String PARENT_KEY_ALIAS = "graphql_parent_key_";
+
+    private final GraphQLRequestContext _ctx;
+    private final ColumnInfo _column;
+
+    private final TableInfo _valueTable;          // far right table
+    private final TableInfo _junctionTable;       // junction table in the middle
+    private final String _junctionKey;            // column on junctionTable that matches the parent's value
+    private final String _junctionLookupColumn;   // column on junctionTable that has an FK to the value table
+    private final String _valueKey;               // column on valueTable the junction lookup column refers to
+    private final String _selectValueColumn;
+
+    public GraphQLMultiValuedLoader(@Nullable GraphQLRequestContext ctx, @NotNull ColumnInfo column, @NotNull MultiValuedForeignKey mvfk, @Nullable String selectValueColumn)
+    {
+        _ctx = ctx;
+        _column = column;
+
+        _junctionLookupColumn = mvfk.getJunctionLookup();
+        _junctionKey = mvfk.getLookupColumnName();
+
+        _valueTable = ctx != null ? ctx.getLookupTable(mvfk) : mvfk.getLookupTableInfo();
+        _junctionTable = ctx != null ? ctx.getLookupTable(mvfk.getSourceFk()) : mvfk.getSourceFk().getLookupTableInfo();
+
+        ColumnInfo junctCol = _junctionTable.getColumn(_junctionLookupColumn);
+        ForeignKey valueFk = junctCol.getFk();
+        _valueKey = valueFk.getLookupColumnName();
+
+        if ("~~title~~".equals(selectValueColumn))
+            selectValueColumn = _valueTable.getTitleColumn();
+        _selectValueColumn = selectValueColumn;
+    }
+
+    public static DataLoader<Object, List<Object>> create(@NotNull GraphQLRequestContext ctx, @NotNull ColumnInfo column, @NotNull MultiValuedForeignKey mvfk, @Nullable String selectValueColumn)
+    {
+        DataLoaderOptions options = DataLoaderOptions.newOptions()
+                .setMaxBatchSize(ctx.getMaxBatchSize());
+        return new DataLoader<>(new GraphQLMultiValuedLoader(ctx, column, mvfk, selectValueColumn), options);
+    }
+
+    @Override
+    public CompletableFuture<List<List<Object>>> load(List<Object> keys)
+    {
+        return CompletableFuture.completedFuture(select(keys));
+    }
+
+    /**
+     * Select the values for each of the parent keys.  The returned list is in the same order as the keys.
+     */
+    @NotNull
+    public List<List<Object>> select(@NotNull List<Object> keys)
+    {
+        SQLFragment frag = new SQLFragment("SELECT j.").append(_junctionKey).append(" AS ").append(PARENT_KEY_ALIAS);
+        if (_selectValueColumn != null)
+            frag.append(", v.").append(_selectValueColumn);
+        else
+            frag.append(", v.* ");
+        frag.append(" FROM ").append(_valueTable, "v")
+                .append(" INNER JOIN ").append(_junctionTable, "j")
+                .append(" ON v.").append(_valueKey).append(" = j.").append(_junctionLookupColumn)
+                .append(" WHERE j.").append(_junctionKey).append(" IN (");
+        String sep = "";
+        for (Object key : keys)
+        {
+            frag.append(sep).append("?").add(key);
+            sep = ", ";
+        }
+        frag.append(")");
+
+        long start = System.nanoTime();
+        List<Map<String, Object>> rows = GraphQLRow.select(new SqlSelector(_valueTable.getSchema(), frag));
+        GraphQLInstrumentation.recordSql(frag::getSQL, rows.size(), start);
+
+        Map<Object, List<Object>> valuesByKey = new HashMap<>();
+        for (Map<String, Object> row : rows)
+        {
+            Object key = GraphQLLookupLoader.normalizeKey(row.get(PARENT_KEY_ALIAS));
+            Object value = row;
+            if (_selectValueColumn != null)
+            {
+                value = row.get(_selectValueColumn);
+                if (value != null)
+                    value = ConvertUtils.convert(value, _column.getJavaClass());
+            }
+            valuesByKey.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+        }
+
+        // the value rows of every parent are siblings of each other for any nested lookups
+        if (_ctx != null && _selectValueColumn == null)
+            _ctx.addSiblings(rows);
+
+        List<List<Object>> ret = new ArrayList<>(keys.size());
+        for (Object key : keys)
+        {
+            List<Object> values = valuesByKey.get(GraphQLLookupLoader.normalizeKey(key));
+            ret.add(values != null ? values : Collections.emptyList());
+        }
+        return ret;
+    }
+}
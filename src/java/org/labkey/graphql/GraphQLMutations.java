@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.schema.DataFetcher;
+import graphql.schema.DataFetchingEnvironment;
+import graphql.schema.GraphQLInputObjectField;
+import graphql.schema.GraphQLInputObjectType;
+import graphql.schema.GraphQLList;
+import graphql.schema.GraphQLNonNull;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLOutputType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.CompareType;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.MultiValuedForeignKey;
+import org.labkey.api.data.RuntimeSQLException;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.query.BatchValidationException;
+import org.labkey.api.query.DuplicateKeyException;
+import org.labkey.api.query.InvalidKeyException;
+import org.labkey.api.query.QueryUpdateService;
+import org.labkey.api.query.QueryUpdateServiceException;
+import org.labkey.api.security.User;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static graphql.Scalars.GraphQLInt;
+import static graphql.schema.GraphQLArgument.newArgument;
+import static graphql.schema.GraphQLFieldDefinition.newFieldDefinition;
+import static graphql.schema.GraphQLInputObjectType.newInputObject;
+
+/**
+ * Mutation fields for tables with a QueryUpdateService: "insert&lt;Table&gt;", "update&lt;Table&gt;" and
+ * "delete&lt;Table&gt;" each take a list of rows (or keys) and apply them in one transaction, calling the update
+ * service with chunks of MutationChunkSize rows rather than a row at a time.  Insert and update return the
+ * affected rows, selected again in one query with only the fields the mutation selects; delete returns the number
+ * of rows deleted.
+ *
+ * Mutations run on the request thread, in the request's transaction, never on {@link GraphQLExecutor}.
+ */
+public class GraphQLMutations
+{
+    public static final String INSERT = "insert";
+    public static final String UPDATE = "update";
+    public static final String DELETE = "delete";
+
+    private static final Pattern GRAPHQL_NAME = Pattern.compile("[_A-Za-z][_0-9A-Za-z]*");
+
+    private GraphQLMutations()
+    {
+    }
+
+    private enum Operation
+    {
+        INSERT, UPDATE, DELETE
+    }
+
+    /**
+     * Add the table's mutation fields.
+     *
+     * @param typeName name of the table's row type
+     * @return false if the table isn't updatable
+     */
+    public static boolean addMutationFields(@NotNull GraphQLObjectType.Builder mutation, @NotNull TableInfo table, @NotNull String typeName, @NotNull GraphQLOutputType rowType)
+    {
+        if (table.getUpdateService() == null || table.getPkColumns().isEmpty())
+            return false;
+
+        GraphQLInputObjectType rowInput = createInputType(table, typeName + "_Input", false);
+        GraphQLInputObjectType keyInput = createInputType(table, typeName + "_Key", true);
+
+        mutation
+                .field(newFieldDefinition()
+                        .name(INSERT + table.getName())
+                        .description("Insert rows into " + table.getName() + " and return the inserted rows")
+                        .type(new GraphQLList(rowType))
+                        .argument(newArgument().name("rows").type(new GraphQLNonNull(new GraphQLList(new GraphQLNonNull(rowInput)))).build())
+                        .dataFetcher(mutationFetcher(table, Operation.INSERT))
+                        .build())
+                .field(newFieldDefinition()
+                        .name(UPDATE + table.getName())
+                        .description("Update rows of " + table.getName() + ", identified by their primary key values, and return the updated rows")
+                        .type(new GraphQLList(rowType))
+                        .argument(newArgument().name("rows").type(new GraphQLNonNull(new GraphQLList(new GraphQLNonNull(rowInput)))).build())
+                        .dataFetcher(mutationFetcher(table, Operation.UPDATE))
+                        .build())
+                .field(newFieldDefinition()
+                        .name(DELETE + table.getName())
+                        .description("Delete rows of " + table.getName() + " by primary key and return the number of rows deleted")
+                        .type(GraphQLInt)
+                        .argument(newArgument().name("keys").type(new GraphQLNonNull(new GraphQLList(new GraphQLNonNull(keyInput)))).build())
+                        .dataFetcher(mutationFetcher(table, Operation.DELETE))
+                        .build());
+
+        return true;
+    }
+
+    /**
+     * @return the table name if the field name is one of its mutation fields, otherwise null
+     */
+    @Nullable
+    public static String getTableName(@NotNull String fieldName)
+    {
+        for (String prefix : new String[]{INSERT, UPDATE, DELETE})
+        {
+            if (fieldName.length() > prefix.length() && fieldName.startsWith(prefix))
+                return fieldName.substring(prefix.length());
+        }
+        return null;
+    }
+
+    // Input fields use the same scalar types as the row type's fields; lookups take the foreign key value
+    private static GraphQLInputObjectType createInputType(TableInfo table, String name, boolean keysOnly)
+    {
+        GraphQLInputObjectType.Builder builder = newInputObject().name(name);
+        for (ColumnInfo column : keysOnly ? table.getPkColumns() : table.getColumns())
+        {
+            if (!GRAPHQL_NAME.matcher(column.getName()).matches() || column.getFk() instanceof MultiValuedForeignKey)
+                continue;
+            if (!keysOnly && !column.isKeyField() && (!column.isUserEditable() || column.isCalculated()))
+                continue;
+
+            builder.field(GraphQLInputObjectField.newInputObjectField()
+                    .name(column.getName())
+                    .description(column.getDescription())
+                    .type(keysOnly ? new GraphQLNonNull(GraphQLController.scalarType(column)) : GraphQLController.scalarType(column))
+                    .build());
+        }
+        return builder.build();
+    }
+
+    private static DataFetcher mutationFetcher(TableInfo table, Operation operation)
+    {
+        return env -> {
+            GraphQLRequestContext ctx = GraphQLRequestContext.get(env);
+            TableInfo t = ctx != null ? ctx.getTable(table) : table;
+            User user = ctx != null ? ctx.getUser() : t.getUserSchema().getUser();
+            Container c = ctx != null ? ctx.getContainer() : t.getUserSchema().getContainer();
+
+            List<Map<String, Object>> rows = new ArrayList<>();
+            List<Map<String, Object>> args = env.getArgument(operation == Operation.DELETE ? "keys" : "rows");
+            for (Map<String, Object> arg : args)
+                rows.add(new CaseInsensitiveHashMap<>(arg));
+
+            int chunkSize = GraphQLManager.get().getMutationChunkSize(c);
+            List<Map<String, Object>> affected = apply(t, user, c, operation, rows, chunkSize);
+            if (operation == Operation.DELETE)
+                return affected.size();
+
+            return select(ctx, t, env, affected);
+        };
+    }
+
+    // Apply the rows in chunks in one transaction, returning the rows the update service returns
+    private static List<Map<String, Object>> apply(TableInfo table, User user, Container c, Operation operation, List<Map<String, Object>> rows, int chunkSize)
+    {
+        QueryUpdateService qus = table.getUpdateService();
+        if (qus == null)
+            throw new IllegalArgumentException("Table '" + table.getName() + "' can't be updated");
+
+        DbScope scope = table.getSchema().getScope();
+        List<Map<String, Object>> ret = new ArrayList<>(rows.size());
+        try (DbScope.Transaction tx = scope.ensureTransaction())
+        {
+            for (int i = 0; i < rows.size(); i += chunkSize)
+            {
+                List<Map<String, Object>> chunk = rows.subList(i, Math.min(rows.size(), i + chunkSize));
+                long start = System.nanoTime();
+                List<Map<String, Object>> result;
+                switch (operation)
+                {
+                    case INSERT:
+                        BatchValidationException errors = new BatchValidationException();
+                        result = qus.insertRows(user, c, chunk, errors, null, null);
+                        if (errors.hasErrors())
+                            throw errors;
+                        break;
+                    case UPDATE:
+                        result = qus.updateRows(user, c, chunk, getKeys(table, chunk), null, null);
+                        break;
+                    case DELETE:
+                    default:
+                        result = qus.deleteRows(user, c, chunk, null, null);
+                        break;
+                }
+                GraphQLInstrumentation.recordSql(() -> operation.name() + " " + chunk.size() + " rows into " + table.getName(), chunk.size(), start);
+                if (result != null)
+                    ret.addAll(result);
+            }
+            tx.commit();
+        }
+        catch (BatchValidationException | DuplicateKeyException | InvalidKeyException e)
+        {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        catch (QueryUpdateServiceException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeSQLException(e);
+        }
+        finally
+        {
+            // cached results reading the table are stale once the transaction commits
+            GraphQLResultCache.uncache(table);
+        }
+        return ret;
+    }
+
+    private static List<Map<String, Object>> getKeys(TableInfo table, List<Map<String, Object>> rows)
+    {
+        List<Map<String, Object>> ret = new ArrayList<>(rows.size());
+        for (Map<String, Object> row : rows)
+        {
+            Map<String, Object> key = new CaseInsensitiveHashMap<>();
+            for (ColumnInfo pk : table.getPkColumns())
+            {
+                if (row.get(pk.getName()) == null)
+                    throw new IllegalArgumentException("Primary key value '" + pk.getName() + "' is required to update a row of '" + table.getName() + "'");
+                key.put(pk.getName(), row.get(pk.getName()));
+            }
+            ret.add(key);
+        }
+        return ret;
+    }
+
+    /**
+     * Select the affected rows again, in one query, in the order they were given.
+     */
+    private static List<Map<String, Object>> select(@Nullable GraphQLRequestContext ctx, TableInfo table, DataFetchingEnvironment env, List<Map<String, Object>> affected)
+    {
+        List<ColumnInfo> pkColumns = table.getPkColumns();
+        List<List<Object>> keys = new ArrayList<>(affected.size());
+        for (Map<String, Object> row : affected)
+        {
+            Map<String, Object> ci = new CaseInsensitiveHashMap<>(row);
+            List<Object> key = new ArrayList<>(pkColumns.size());
+            for (ColumnInfo pk : pkColumns)
+                key.add(GraphQLLookupLoader.normalizeKey(ci.get(pk.getName())));
+            keys.add(key);
+        }
+        if (keys.isEmpty())
+            return new ArrayList<>();
+
+        SimpleFilter filter = new SimpleFilter();
+        if (pkColumns.size() == 1)
+        {
+            List<Object> values = new ArrayList<>(keys.size());
+            for (List<Object> key : keys)
+                values.add(key.get(0));
+            filter.addInClause(pkColumns.get(0).getFieldKey(), values);
+        }
+        else
+        {
+            SimpleFilter.OrClause or = new SimpleFilter.OrClause();
+            for (List<Object> key : keys)
+            {
+                SimpleFilter.AndClause and = new SimpleFilter.AndClause();
+                for (int i = 0; i < pkColumns.size(); i++)
+                    and.addClause(CompareType.EQUAL.createFilterClause(pkColumns.get(i).getFieldKey(), key.get(i)));
+                or.addClause(and);
+            }
+            filter.addClause(or);
+        }
+
+        List<Map<String, Object>> rows;
+        if (ctx != null)
+            rows = GraphQLQueryPlan.create(ctx, table, env).select(filter, null);
+        else
+        {
+            long start = System.nanoTime();
+            rows = new ArrayList<>(new TableSelector(table, TableSelector.ALL_COLUMNS, filter, null).getMapCollection());
+            GraphQLInstrumentation.recordSql(GraphQLTrace.describe(table, null, filter, null), rows.size(), start);
+        }
+
+        Map<List<Object>, Map<String, Object>> rowsByKey = new HashMap<>();
+        for (Map<String, Object> row : rows)
+        {
+            List<Object> key = new ArrayList<>(pkColumns.size());
+            for (ColumnInfo pk : pkColumns)
+                key.add(GraphQLLookupLoader.normalizeKey(row.get(pk.getName())));
+            rowsByKey.put(key, row);
+        }
+
+        List<Map<String, Object>> ret = new ArrayList<>(keys.size());
+        for (List<Object> key : keys)
+            ret.add(rowsByKey.get(key));
+        return ret;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerFilter;
+import org.labkey.api.query.QueryChangeListener;
+import org.labkey.api.query.SchemaKey;
+import org.labkey.api.security.User;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Drops cached GraphQL schemas when query metadata changes.  A schema includes the
+ * types of every lookup table reachable from the root table, so any change in the
+ * container invalidates all of the container's schemas, and those of the containers
+ * with lookups into it (see {@link GraphQLSchemaCache#uncache}).
+ */
+public class GraphQLQueryChangeListener implements QueryChangeListener
+{
+    @Override
+    public void queryCreated(User user, Container container, ContainerFilter scope, SchemaKey schema, Collection<String> queries)
+    {
+        GraphQLSchemaCache.uncache(container);
+        GraphQLResultCache.uncache(container);
+    }
+
+    @Override
+    public void queryChanged(User user, Container container, ContainerFilter scope, SchemaKey schema, QueryProperty property, Collection<QueryPropertyChange> changes)
+    {
+        GraphQLSchemaCache.uncache(container);
+        GraphQLResultCache.uncache(container);
+    }
+
+    @Override
+    public void queryDeleted(User user, Container container, ContainerFilter scope, SchemaKey schema, Collection<String> queries)
+    {
+        GraphQLSchemaCache.uncache(container);
+        GraphQLResultCache.uncache(container);
+    }
+
+    @Override
+    public Collection<String> queryDependents(User user, Container container, ContainerFilter scope, SchemaKey schema, Collection<String> queries)
+    {
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
+import graphql.schema.DataFetchingEnvironment;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.Filter;
+import org.labkey.api.data.ForeignKey;
+import org.labkey.api.data.MultiValuedForeignKey;
+import org.labkey.api.data.Sort;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.query.QueryService;
+import org.labkey.api.query.RowIdForeignKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plans the select for a root table field.  Chains of selected single-valued lookups are pushed down
+ * into the root query as lookup FieldKeys (e.g. "ExpressionSystem/HostCellLineId/Container/Name") so
+ * LabKey's query layer resolves them as joins, and each result set row is read into nested {@link GraphQLRow}s.
+ *
+ * The nested object for a pushed-down lookup column is stored on the parent row under {@link #getLookupKey(String)}
+ * and picked up by the lookup's data fetcher.  Lookups that can't be resolved as FieldKeys, and multi-valued
+ * lookups, are left to the batched loaders.
+ */
+public class GraphQLQueryPlan
+{
+    private static final String LOOKUP_PREFIX = "~~lookup~~/";
+
+    private final GraphQLRequestContext _ctx;
+    private final TableInfo _table;
+    private final Node _root;
+    private final Map<FieldKey, ColumnInfo> _columns;
+
+    private static class Node
+    {
+        final FieldKey _parent;
+        final List<ColumnInfo> _columns;
+        final List<ColumnInfo> _pkColumns;
+        final Map<String, List<Field>> _selected;
+        final Map<String, Node> _lookups = new LinkedHashMap<>();
+
+        // set by bind(): the shape of the node's rows, and the index in the flat row of each of its selected columns
+        GraphQLRow.Shape _shape;
+        int[] _flatIndexes;
+
+        Node(@Nullable FieldKey parent, List<ColumnInfo> columns, List<ColumnInfo> pkColumns, Map<String, List<Field>> selected)
+        {
+            _parent = parent;
+            _columns = columns;
+            _pkColumns = pkColumns;
+            _selected = selected;
+        }
+
+        FieldKey getFieldKey(ColumnInfo col)
+        {
+            return new FieldKey(_parent, col.getName());
+        }
+
+        void collectFieldKeys(Set<FieldKey> fieldKeys)
+        {
+            for (ColumnInfo col : _columns)
+                fieldKeys.add(getFieldKey(col));
+            for (Node lookup : _lookups.values())
+                lookup.collectFieldKeys(fieldKeys);
+        }
+
+        // Remove any pushed-down lookup that has a FieldKey the query layer couldn't resolve
+        void prune(Map<FieldKey, ColumnInfo> resolved)
+        {
+            Iterator<Node> it = _lookups.values().iterator();
+            while (it.hasNext())
+            {
+                Node lookup = it.next();
+                Set<FieldKey> fieldKeys = new LinkedHashSet<>();
+                lookup.collectFieldKeys(fieldKeys);
+                if (!resolved.keySet().containsAll(fieldKeys))
+                    it.remove();
+                else
+                    lookup.prune(resolved);
+            }
+        }
+
+        // The node's rows hold its selected columns followed by its pushed-down lookups
+        void bind(List<FieldKey> flatColumns)
+        {
+            List<String> names = new ArrayList<>();
+            List<Integer> flatIndexes = new ArrayList<>();
+            for (ColumnInfo col : _columns)
+            {
+                int index = flatColumns.indexOf(getFieldKey(col));
+                if (index >= 0 && !names.contains(col.getName()))
+                {
+                    names.add(col.getName());
+                    flatIndexes.add(index);
+                }
+            }
+            for (String lookupColumn : _lookups.keySet())
+                names.add(getLookupKey(lookupColumn));
+
+            _shape = new GraphQLRow.Shape(names);
+            _flatIndexes = flatIndexes.stream().mapToInt(Integer::intValue).toArray();
+
+            for (Node lookup : _lookups.values())
+                lookup.bind(flatColumns);
+        }
+    }
+
+    private GraphQLQueryPlan(GraphQLRequestContext ctx, TableInfo table, Node root)
+    {
+        _ctx = ctx;
+        _table = table;
+        _root = root;
+
+        Set<FieldKey> fieldKeys = new LinkedHashSet<>();
+        root.collectFieldKeys(fieldKeys);
+        Map<FieldKey, ColumnInfo> resolved = QueryService.get().getColumns(table, fieldKeys);
+        root.prune(resolved);
+
+        // only select the columns of the lookups that survived pruning
+        fieldKeys.clear();
+        root.collectFieldKeys(fieldKeys);
+        _columns = new LinkedHashMap<>();
+        for (FieldKey fieldKey : fieldKeys)
+        {
+            if (resolved.containsKey(fieldKey))
+                _columns.put(fieldKey, resolved.get(fieldKey));
+        }
+        root.bind(new ArrayList<>(_columns.keySet()));
+    }
+
+    /**
+     * Plan the select of the table for the sub-fields of the field being fetched.
+     */
+    public static GraphQLQueryPlan create(@NotNull GraphQLRequestContext ctx, @NotNull TableInfo table, @NotNull DataFetchingEnvironment env)
+    {
+        return create(ctx, table, GraphQLSelection.getSelectedFields(env), env.getFragmentsByName(), Collections.emptyList());
+    }
+
+    /**
+     * Plan the select of the table for the selected row fields.
+     *
+     * @param extraColumns additional columns of the table to include in each row, e.g. sort columns
+     */
+    public static GraphQLQueryPlan create(@NotNull GraphQLRequestContext ctx, @NotNull TableInfo table,
+                                          @NotNull Map<String, List<Field>> selected, @NotNull Map<String, FragmentDefinition> fragments,
+                                          @NotNull Collection<ColumnInfo> extraColumns)
+    {
+        Node root = plan(ctx, table, null, selected, fragments);
+        for (ColumnInfo col : extraColumns)
+        {
+            if (!root._columns.contains(col))
+                root._columns.add(col);
+        }
+        return new GraphQLQueryPlan(ctx, table, root);
+    }
+
+    @Nullable
+    private static Node plan(GraphQLRequestContext ctx, TableInfo table, @Nullable FieldKey parent, Map<String, List<Field>> selected, Map<String, FragmentDefinition> fragments)
+    {
+        List<ColumnInfo> columns = GraphQLSelection.getSelectedColumns(table, selected.keySet());
+        if (columns == null)
+        {
+            // we don't know which columns the lookup's links need -- leave it to the loader
+            if (parent != null)
+                return null;
+            columns = new ArrayList<>(table.getColumns());
+        }
+
+        Node node = new Node(parent, columns, table.getPkColumns(), selected);
+
+        for (Map.Entry<String, List<Field>> entry : selected.entrySet())
+        {
+            ColumnInfo col = table.getColumn(entry.getKey());
+            if (col == null)
+                continue;
+
+            ForeignKey fk = col.getFk();
+            if (fk == null || fk instanceof RowIdForeignKey || fk instanceof MultiValuedForeignKey)
+                continue;
+
+            TableInfo lookupTable = ctx.getLookupTable(fk);
+            if (lookupTable == null)
+                continue;
+
+            Map<String, List<Field>> subSelected = GraphQLSelection.getSelectedFields(entry.getValue(), fragments);
+            Node lookup = plan(ctx, lookupTable, new FieldKey(parent, col.getName()), subSelected, fragments);
+            if (lookup != null)
+                node._lookups.put(col.getName(), lookup);
+        }
+
+        return node;
+    }
+
+    public static String getLookupKey(@NotNull String columnName)
+    {
+        return LOOKUP_PREFIX + columnName;
+    }
+
+    public Collection<ColumnInfo> getColumns()
+    {
+        return _columns.values();
+    }
+
+    public TableSelector getSelector(@Nullable Filter filter, @Nullable Sort sort)
+    {
+        return new TableSelector(_table, getColumns(), filter, sort);
+    }
+
+    /**
+     * Select and reshape the rows.
+     */
+    public List<Map<String, Object>> select(@Nullable Filter filter, @Nullable Sort sort)
+    {
+        long start = System.nanoTime();
+        List<Map<String, Object>> rows = select(getSelector(filter, sort));
+        GraphQLInstrumentation.recordSql(GraphQLTrace.describe(_table, getColumns(), filter, sort), rows.size(), start);
+        return rows;
+    }
+
+    /**
+     * Select the rows of the selector (see {@link #getSelector}), reading the result set straight into the nested rows.
+     * Rows at the same level are registered as siblings so lookups that weren't pushed down are still batched.
+     */
+    public List<Map<String, Object>> select(@NotNull TableSelector selector)
+    {
+        List<ColumnInfo> columns = new ArrayList<>(getColumns());
+        Map<Node, List<Map<String, Object>>> siblings = new LinkedHashMap<>();
+        List<Map<String, Object>> ret = new ArrayList<>();
+
+        int[] ordinals = new int[columns.size()];
+        Object[] flatRow = new Object[columns.size()];
+        selector.forEach(rs -> {
+            if (ret.isEmpty())
+            {
+                for (int i = 0; i < ordinals.length; i++)
+                    ordinals[i] = rs.findColumn(columns.get(i).getAlias());
+            }
+            for (int i = 0; i < ordinals.length; i++)
+                flatRow[i] = rs.getObject(ordinals[i]);
+            ret.add(reshape(_root, flatRow, siblings));
+        });
+
+        addSiblings(ret, siblings);
+        return ret;
+    }
+
+    /**
+     * Reshape flat result rows, keyed by column alias, into nested objects.
+     */
+    public List<Map<String, Object>> reshape(@NotNull Collection<Map<String, Object>> flatRows)
+    {
+        List<ColumnInfo> columns = new ArrayList<>(getColumns());
+        Map<Node, List<Map<String, Object>>> siblings = new LinkedHashMap<>();
+        List<Map<String, Object>> ret = new ArrayList<>(flatRows.size());
+
+        Object[] flatRow = new Object[columns.size()];
+        for (Map<String, Object> row : flatRows)
+        {
+            for (int i = 0; i < flatRow.length; i++)
+                flatRow[i] = row.get(columns.get(i).getAlias());
+            ret.add(reshape(_root, flatRow, siblings));
+        }
+
+        addSiblings(ret, siblings);
+        return ret;
+    }
+
+    private void addSiblings(List<Map<String, Object>> rows, Map<Node, List<Map<String, Object>>> siblings)
+    {
+        _ctx.addSiblings(rows, _root._selected);
+        for (Map.Entry<Node, List<Map<String, Object>>> entry : siblings.entrySet())
+            _ctx.addSiblings(entry.getValue(), entry.getKey()._selected);
+    }
+
+    // flatRow holds the values of the selected columns, in the order of getColumns()
+    @Nullable
+    private Map<String, Object> reshape(Node node, Object[] flatRow, Map<Node, List<Map<String, Object>>> siblings)
+    {
+        GraphQLRow row = new GraphQLRow(node._shape);
+        for (int i = 0; i < node._flatIndexes.length; i++)
+            row.setValue(i, flatRow[node._flatIndexes[i]]);
+
+        // a lookup to a row that doesn't exist (or isn't visible to the user) is null
+        if (node != _root && !node._pkColumns.isEmpty() && node._pkColumns.stream().allMatch(pk -> row.get(pk.getName()) == null))
+            return null;
+
+        for (Map.Entry<String, Node> entry : node._lookups.entrySet())
+        {
+            Map<String, Object> lookupRow = null;
+            if (row.get(entry.getKey()) != null)
+            {
+                lookupRow = reshape(entry.getValue(), flatRow, siblings);
+                if (lookupRow != null)
+                    siblings.computeIfAbsent(entry.getValue(), n -> new ArrayList<>()).add(lookupRow);
+            }
+            row.put(getLookupKey(entry.getKey()), lookupRow);
+        }
+
+        return row;
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.language.Field;
+import graphql.schema.DataFetchingEnvironment;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.dataloader.DataLoader;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ForeignKey;
+import org.labkey.api.data.MultiValuedForeignKey;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.query.QueryService;
+import org.labkey.api.query.RowIdForeignKey;
+import org.labkey.api.query.UserIdForeignKey;
+import org.labkey.api.query.UserSchema;
+import org.labkey.api.security.User;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Per-request state passed to graphql-java as the execution context object.
+ *
+ * GraphQL schemas are cached and shared between users with the same effective permissions, so
+ * the TableInfos captured while building the schema belong to whoever built it first.  Data fetchers
+ * use this context to resolve the tables again for the user actually executing the query.
+ *
+ * With parallel execution (see {@link GraphQLExecutor}) data fetchers use the context from several threads at once,
+ * so its state is guarded by the context's lock.
+ */
+public class GraphQLRequestContext
+{
+    private static final AtomicLong _totalMemoHits = new AtomicLong();
+    private static final AtomicLong _totalSavedQueries = new AtomicLong();
+
+    private final User _user;
+    private final Container _container;
+
+    private final int _maxBatchSize;
+    private final @Nullable Executor _executor;
+    private final @Nullable GraphQLExecutor.RequestState _requestState;
+
+    private final Map<String, TableInfo> _tables = new HashMap<>();
+
+    // keys of the tables read by this request (see GraphQLResultCache.getTableKey), and whether any couldn't be identified
+    private final Map<String, TableInfo> _tablesRead = new HashMap<>();
+    private boolean _untrackedTables;
+
+    // rows fetched together (a list result or a lookup batch), used to batch the lookups of each row
+    private final Map<Map<String, Object>, List<Map<String, Object>>> _siblings = new IdentityHashMap<>();
+    // the fields selected from each group of sibling rows, when known, and the lookups batched together for each group
+    private final Map<List<Map<String, Object>>, Map<String, List<Field>>> _siblingSelections = new IdentityHashMap<>();
+    private final Map<List<Map<String, Object>>, Map<String, LookupGroup>> _lookupGroups = new IdentityHashMap<>();
+    private final Map<TableInfo, Map<String, DataLoader<Object, Map<String, Object>>>> _lookupLoaders = new IdentityHashMap<>();
+    private final Map<ColumnInfo, DataLoader<Object, List<Object>>> _multiValuedLoaders = new IdentityHashMap<>();
+    private final Map<Field, List<ColumnInfo>> _selectedColumns = new IdentityHashMap<>();
+
+    // lookup rows already resolved in this request, by lookup table and (lookup column, key)
+    private final Map<TableInfo, Map<List<Object>, MemoizedRow>> _lookupMemo = new IdentityHashMap<>();
+    private long _memoHits;
+    private long _savedQueries;
+
+    private volatile GraphQLConnection.StreamPage _streamPage;
+    private volatile GraphQLIncrementalWriter.Replay _replay;
+    private final Map<ColumnInfo, Set<List<Map<String, Object>>>> _queued = new IdentityHashMap<>();
+
+    public GraphQLRequestContext(@NotNull User user, @NotNull Container container)
+    {
+        this(user, container, GraphQLManager.get().getMaxBatchSize(container),
+                GraphQLManager.get().isParallelExecution(container) ? GraphQLExecutor.create(GraphQLManager.get().getMaxConcurrency(container)) : null);
+    }
+
+    /**
+     * @param executor executor for fields that query the database, or null to resolve every field on the request thread
+     */
+    public GraphQLRequestContext(@NotNull User user, @NotNull Container container, int maxBatchSize, @Nullable Executor executor)
+    {
+        _user = user;
+        _container = container;
+        _maxBatchSize = maxBatchSize;
+        _executor = executor;
+        _requestState = executor != null ? GraphQLExecutor.RequestState.capture() : null;
+    }
+
+    @Nullable
+    public static GraphQLRequestContext get(DataFetchingEnvironment env)
+    {
+        Object context = env.getContext();
+        if (context instanceof GraphQLRequestContext)
+            return (GraphQLRequestContext)context;
+        return null;
+    }
+
+    public User getUser()
+    {
+        return _user;
+    }
+
+    public Container getContainer()
+    {
+        return _container;
+    }
+
+    public int getMaxBatchSize()
+    {
+        return _maxBatchSize;
+    }
+
+    @Nullable
+    public Executor getExecutor()
+    {
+        return _executor;
+    }
+
+    /**
+     * The thread-local state of the thread that created the context, for fields resolved on the executor.
+     */
+    @Nullable
+    public GraphQLExecutor.RequestState getRequestState()
+    {
+        return _requestState;
+    }
+
+    @Nullable
+    public GraphQLConnection.StreamPage getStreamPage()
+    {
+        return _streamPage;
+    }
+
+    public void setStreamPage(@Nullable GraphQLConnection.StreamPage streamPage)
+    {
+        _streamPage = streamPage;
+    }
+
+    @Nullable
+    public GraphQLIncrementalWriter.Replay getReplay()
+    {
+        return _replay;
+    }
+
+    public void setReplay(@Nullable GraphQLIncrementalWriter.Replay replay)
+    {
+        _replay = replay;
+    }
+
+    /**
+     * Remember that the rows were fetched together so lookups from any one of them can be loaded for all of them.
+     */
+    public synchronized void addSiblings(@NotNull List<Map<String, Object>> rows)
+    {
+        for (Map<String, Object> row : rows)
+            _siblings.put(row, rows);
+    }
+
+    /**
+     * Remember that the rows were fetched together, and which of their fields are selected, so the lookups of
+     * different columns into the same table can be loaded together (see {@link #getLookupGroup}).
+     */
+    public synchronized void addSiblings(@NotNull List<Map<String, Object>> rows, @Nullable Map<String, List<Field>> selected)
+    {
+        addSiblings(rows);
+        if (selected != null)
+            _siblingSelections.put(rows, selected);
+    }
+
+    @NotNull
+    public synchronized List<Map<String, Object>> getSiblings(@NotNull Map<String, Object> row)
+    {
+        List<Map<String, Object>> siblings = _siblings.get(row);
+        return siblings != null ? siblings : Collections.singletonList(row);
+    }
+
+    /**
+     * Single-valued lookup columns of a group of sibling rows that look up the same table by the same column, e.g.
+     * CreatedBy and ModifiedBy, whose keys are loaded with one query, and what to select from the lookup table for them.
+     */
+    public static class LookupGroup
+    {
+        private final List<ColumnInfo> _fkColumns;
+        private final @Nullable List<ColumnInfo> _columns;
+        private final @Nullable Map<String, List<Field>> _selected;
+
+        private LookupGroup(List<ColumnInfo> fkColumns, @Nullable List<ColumnInfo> columns, @Nullable Map<String, List<Field>> selected)
+        {
+            _fkColumns = fkColumns;
+            _columns = columns;
+            _selected = selected;
+        }
+
+        /** The sibling rows' columns whose keys are loaded together. */
+        public List<ColumnInfo> getFkColumns()
+        {
+            return _fkColumns;
+        }
+
+        /** The lookup table columns selected by any of the lookups, or null for all columns. */
+        @Nullable
+        public List<ColumnInfo> getColumns()
+        {
+            return _columns;
+        }
+
+        /** The fields selected from the lookup rows by any of the lookups, if known. */
+        @Nullable
+        public Map<String, List<Field>> getSelected()
+        {
+            return _selected;
+        }
+    }
+
+    /**
+     * Get the lookups to load together with the lookup of the column from the sibling rows.  If the fields selected
+     * from the rows aren't known, the column's lookup is loaded alone.
+     */
+    @NotNull
+    public synchronized LookupGroup getLookupGroup(@NotNull List<Map<String, Object>> siblings, @NotNull ColumnInfo column,
+                                                   @NotNull TableInfo lookupTable, @NotNull ColumnInfo lookupColumn, @NotNull DataFetchingEnvironment env)
+    {
+        Map<String, LookupGroup> groups = _lookupGroups.computeIfAbsent(siblings, s -> new CaseInsensitiveHashMap<>());
+        LookupGroup group = groups.get(column.getName());
+        if (group != null)
+            return group;
+
+        Map<String, List<Field>> selected = _siblingSelections.get(siblings);
+        TableInfo parentTable = column.getParentTable();
+        if (selected == null || parentTable == null || !selected.containsKey(column.getName()))
+        {
+            group = new LookupGroup(Collections.singletonList(column), getSelectedColumns(lookupTable, env), GraphQLSelection.getSelectedFields(env));
+            groups.put(column.getName(), group);
+            return group;
+        }
+
+        // the selected columns of the same parent table that look up the same table by the same column and weren't joined in
+        Map<String, Object> first = siblings.get(0);
+        List<ColumnInfo> fkColumns = new ArrayList<>();
+        Map<String, List<Field>> lookupSelected = new LinkedHashMap<>();
+        Set<ColumnInfo> columns = new LinkedHashSet<>();
+        boolean allColumns = false;
+        for (Map.Entry<String, List<Field>> entry : selected.entrySet())
+        {
+            ColumnInfo col = parentTable.getColumn(entry.getKey());
+            ForeignKey fk = col != null ? col.getFk() : null;
+            if (fk == null || fk instanceof RowIdForeignKey || fk instanceof MultiValuedForeignKey || first.containsKey(GraphQLQueryPlan.getLookupKey(col.getName())))
+                continue;
+            if (getLookupTable(fk) != lookupTable || !lookupColumn.getName().equalsIgnoreCase(fk.getLookupColumnName()))
+                continue;
+
+            fkColumns.add(col);
+            Map<String, List<Field>> fields = GraphQLSelection.getSelectedFields(entry.getValue(), env.getFragmentsByName());
+            fields.forEach((name, f) -> lookupSelected.computeIfAbsent(name, n -> new ArrayList<>()).addAll(f));
+            List<ColumnInfo> selectedColumns = GraphQLSelection.getSelectedColumns(lookupTable, fields.keySet());
+            if (selectedColumns == null)
+                allColumns = true;
+            else
+                columns.addAll(selectedColumns);
+        }
+
+        // the column itself may be selected under a name the parent table resolves differently; load it alone
+        if (fkColumns.stream().noneMatch(col -> col.getName().equalsIgnoreCase(column.getName())))
+        {
+            group = new LookupGroup(Collections.singletonList(column), getSelectedColumns(lookupTable, env), GraphQLSelection.getSelectedFields(env));
+            groups.put(column.getName(), group);
+            return group;
+        }
+
+        group = new LookupGroup(fkColumns, allColumns ? null : new ArrayList<>(columns), lookupSelected);
+        for (ColumnInfo fkColumn : fkColumns)
+            groups.put(fkColumn.getName(), group);
+        return group;
+    }
+
+    /**
+     * Get the request's DataLoader for single-valued lookups into the table by the lookup column.
+     * Lookups that select different columns use different loaders, and lookups of different columns into the same
+     * table that select the same columns (see {@link #getLookupGroup}) share one.
+     *
+     * @param columns the columns to select, or null for all columns
+     * @param selected the fields selected from the loaded rows, if known
+     */
+    @NotNull
+    public synchronized DataLoader<Object, Map<String, Object>> getLookupLoader(@NotNull TableInfo lookupTable, @NotNull ColumnInfo lookupColumn,
+                                                                               @Nullable List<ColumnInfo> columns, @Nullable Map<String, List<Field>> selected)
+    {
+        String key = lookupColumn.getName() + "|" + (columns == null ? "*" : columns.stream().map(ColumnInfo::getName).collect(Collectors.joining(",")));
+        return _lookupLoaders
+                .computeIfAbsent(lookupTable, t -> new HashMap<>())
+                .computeIfAbsent(key, k -> GraphQLLookupLoader.create(this, lookupTable, lookupColumn, columns, selected));
+    }
+
+    private static class MemoizedRow
+    {
+        final @Nullable Map<String, Object> _row;
+        final @Nullable Set<String> _columns;
+
+        MemoizedRow(@Nullable Map<String, Object> row, @Nullable Set<String> columns)
+        {
+            _row = row;
+            _columns = columns;
+        }
+
+        // a row loaded with all columns, or a key with no row, satisfies any request
+        boolean covers(@Nullable List<ColumnInfo> columns)
+        {
+            if (_row == null || _columns == null)
+                return true;
+            return columns != null && columns.stream().allMatch(col -> _columns.contains(col.getName()));
+        }
+    }
+
+    /**
+     * Get the lookup rows already resolved in this request, by any lookup loader, for the keys.
+     * Keys with no matching row map to null.
+     *
+     * @param columns the columns the caller needs, or null for all columns
+     */
+    @NotNull
+    public synchronized Map<Object, Map<String, Object>> getMemoizedLookups(@NotNull TableInfo lookupTable, @NotNull ColumnInfo lookupColumn, @Nullable List<ColumnInfo> columns, @NotNull List<Object> keys)
+    {
+        Map<List<Object>, MemoizedRow> memo = _lookupMemo.get(lookupTable);
+        if (memo == null)
+            return Collections.emptyMap();
+
+        Map<Object, Map<String, Object>> ret = new HashMap<>();
+        for (Object key : keys)
+        {
+            MemoizedRow memoized = memo.get(Arrays.asList(lookupColumn.getName(), key));
+            if (memoized != null && memoized.covers(columns))
+                ret.put(key, memoized._row);
+        }
+
+        _memoHits += ret.size();
+        _totalMemoHits.addAndGet(ret.size());
+        if (!keys.isEmpty() && ret.size() == keys.size())
+        {
+            _savedQueries++;
+            _totalSavedQueries.incrementAndGet();
+        }
+        return ret;
+    }
+
+    /**
+     * Remember the lookup rows loaded for the keys.  Keys with no row are remembered too.
+     *
+     * @param columns the columns that were selected, or null for all columns
+     */
+    public synchronized void memoizeLookups(@NotNull TableInfo lookupTable, @NotNull ColumnInfo lookupColumn, @Nullable List<ColumnInfo> columns, @NotNull List<Object> keys, @NotNull Map<Object, Map<String, Object>> rowsByKey)
+    {
+        Set<String> columnNames = columns == null ? null : columns.stream().map(ColumnInfo::getName).collect(Collectors.toSet());
+        Map<List<Object>, MemoizedRow> memo = _lookupMemo.computeIfAbsent(lookupTable, t -> new HashMap<>());
+        for (Object key : keys)
+        {
+            List<Object> memoKey = Arrays.asList(lookupColumn.getName(), key);
+            MemoizedRow existing = memo.get(memoKey);
+
+            // keep the row with more columns
+            if (existing == null || existing._columns != null && existing._row != null && (columnNames == null || columnNames.containsAll(existing._columns)))
+                memo.put(memoKey, new MemoizedRow(rowsByKey.get(key), columnNames));
+        }
+    }
+
+    /** Number of lookup keys resolved from rows already loaded in this request. */
+    public synchronized long getMemoHits()
+    {
+        return _memoHits;
+    }
+
+    /** Number of lookup batches that needed no query because every key was already loaded. */
+    public synchronized long getSavedQueries()
+    {
+        return _savedQueries;
+    }
+
+    /** Number of lookup keys resolved from the lookup memo, over all requests. */
+    public static long getTotalMemoHits()
+    {
+        return _totalMemoHits.get();
+    }
+
+    /** Number of lookup batches that needed no query, over all requests. */
+    public static long getTotalSavedQueries()
+    {
+        return _totalSavedQueries.get();
+    }
+
+    /**
+     * Get the columns needed from the table to resolve the sub-fields of the field being fetched.
+     * The result is remembered for the field, since every row selects the same sub-fields.
+     *
+     * @return the columns to select, or null for all columns
+     */
+    @Nullable
+    public synchronized List<ColumnInfo> getSelectedColumns(@NotNull TableInfo table, @NotNull DataFetchingEnvironment env)
+    {
+        Field field = env.getFields().get(0);
+        if (_selectedColumns.containsKey(field))
+            return _selectedColumns.get(field);
+
+        List<ColumnInfo> columns = GraphQLSelection.getSelectedColumns(table, GraphQLSelection.getSelectedFields(env).keySet());
+        _selectedColumns.put(field, columns);
+        return columns;
+    }
+
+    /**
+     * Get the request's DataLoader for the values of a multi-valued foreign key column.
+     */
+    @NotNull
+    public synchronized DataLoader<Object, List<Object>> getMultiValuedLoader(@NotNull ColumnInfo column, @NotNull MultiValuedForeignKey mvfk, @Nullable String selectValueColumn)
+    {
+        return _multiValuedLoaders.computeIfAbsent(column, c -> GraphQLMultiValuedLoader.create(this, column, mvfk, selectValueColumn));
+    }
+
+    /**
+     * Returns true the first time the group of sibling rows is seen for the lookup column; the caller should then
+     * queue the keys of every row in the group before dispatching.
+     */
+    public synchronized boolean markQueued(@NotNull ColumnInfo column, @NotNull List<Map<String, Object>> siblings)
+    {
+        return _queued
+                .computeIfAbsent(column, c -> Collections.newSetFromMap(new IdentityHashMap<>()))
+                .add(siblings);
+    }
+
+    /**
+     * Get the table for the current user.  If the table was created by another user
+     * (i.e., it was captured while building a cached schema) it is resolved again.
+     */
+    public TableInfo getTable(@NotNull TableInfo table)
+    {
+        UserSchema schema = table.getUserSchema();
+        if (schema == null || _user.equals(schema.getUser()))
+        {
+            addTableKey(table);
+            return table;
+        }
+
+        TableInfo ret = getTable(schema.getContainer(), schema.getSchemaName(), table.getName());
+        if (ret != null)
+            return ret;
+        addTableKey(table);
+        return table;
+    }
+
+    /**
+     * Get the lookup target of the foreign key for the current user.
+     */
+    @Nullable
+    public TableInfo getLookupTable(@NotNull ForeignKey fk)
+    {
+        // See GraphQLController.createSchema: UserIdForeignKey columns are exposed as the "core__Users" query table
+        if (fk instanceof UserIdForeignKey)
+            return getTable(_container, "core", "Users");
+
+        // MultiValuedForeignKey lookup names describe the junction table, not the value table
+        if (fk instanceof MultiValuedForeignKey || fk.getLookupSchemaName() == null || fk.getLookupTableName() == null)
+        {
+            TableInfo lookupTable = fk.getLookupTableInfo();
+            return lookupTable != null ? getTable(lookupTable) : null;
+        }
+
+        Container lookupContainer = fk.getLookupContainer() != null ? fk.getLookupContainer() : _container;
+        return getTable(lookupContainer, fk.getLookupSchemaName(), fk.getLookupTableName());
+    }
+
+    @Nullable
+    public synchronized TableInfo getTable(Container container, String schemaName, String queryName)
+    {
+        String key = container.getId() + "/" + schemaName + "/" + queryName;
+        if (_tables.containsKey(key))
+            return _tables.get(key);
+
+        TableInfo table = null;
+        UserSchema schema = QueryService.get().getUserSchema(_user, container, schemaName);
+        if (schema != null)
+            table = schema.getTable(queryName);
+
+        _tables.put(key, table);
+        if (table != null)
+            addTableKey(table);
+        return table;
+    }
+
+    private synchronized void addTableKey(TableInfo table)
+    {
+        String key = GraphQLResultCache.getTableKey(table);
+        if (key != null)
+            _tablesRead.putIfAbsent(key, table);
+        else
+            _untrackedTables = true;
+    }
+
+    /**
+     * Get the keys of the tables this request has read, including lookup and junction tables.
+     *
+     * @return the keys, or null if the request read a table that isn't part of a user schema
+     */
+    @Nullable
+    public synchronized Set<String> getTableKeys()
+    {
+        return _untrackedTables ? null : new HashSet<>(_tablesRead.keySet());
+    }
+
+    /**
+     * Get the tables this request has read, by key.
+     *
+     * @return the tables, or null if the request read a table that isn't part of a user schema
+     */
+    @Nullable
+    public synchronized Map<String, TableInfo> getTablesRead()
+    {
+        return _untrackedTables ? null : new HashMap<>(_tablesRead);
+    }
+}
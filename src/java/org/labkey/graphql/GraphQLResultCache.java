@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.language.AstPrinter;
+import graphql.language.Document;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.query.UserSchema;
+import org.labkey.api.security.User;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the results of queries in folders with the ResultCache module property enabled, so repeated reads of
+ * tables that rarely change skip execution entirely.
+ *
+ * Results are keyed by the container, the user, and the hash of the normalized (printed) query and its variables.
+ * The user's id rather than their permissions in the container is part of the key, since a result can include
+ * lookup rows from other containers and rows that depend on the user, e.g. core.Users details or USERID() filters.
+ *
+ * Each entry records the version of every table the request resolved through its {@link GraphQLRequestContext},
+ * including lookup tables and the junction tables of multi-valued lookups, and is dropped when any of those tables
+ * changes through the module: when it's modified by a mutation, when query metadata in its folder changes, or (for
+ * core.Users) when a user changes.  To see changes made elsewhere -- insertRows, the UI, imports -- each entry also
+ * records the state of its tables as of before the query executed (see {@link GraphQLETag#getETag}), and a hit is
+ * only returned while that state is unchanged.  Tables whose changes can't be observed that way have no state, so
+ * queries that read them aren't cached.  Entries also expire after {@link #TIME_TO_LIVE_MILLIS}.
+ *
+ * Memory is bounded by the number of values held: results larger than {@link #MAX_ENTRY_VALUES} aren't cached,
+ * and the least recently used entries are evicted once all entries hold more than {@link #MAX_TOTAL_VALUES}.
+ */
+public class GraphQLResultCache
+{
+    public static final long TIME_TO_LIVE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    public static final int MAX_ENTRY_VALUES = 100_000;
+    public static final int MAX_TOTAL_VALUES = 2_000_000;
+
+    // dependencies on any container's copy of a table, e.g. core.Users
+    private static final String ALL_CONTAINERS = "*";
+
+    // version of each container and table changed since startup; unchanged ones are version 0
+    private static final Map<String, Long> VERSIONS = new ConcurrentHashMap<>();
+    private static final AtomicLong VERSION_COUNTER = new AtomicLong();
+
+    // guarded by itself; in access order, so the eldest entry is the least recently used
+    private static final LinkedHashMap<String, Entry> ENTRIES = new LinkedHashMap<>(256, 0.75f, true);
+    private static long _totalValues;
+
+    private static final AtomicLong REQUESTS = new AtomicLong();
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong PUTS = new AtomicLong();
+    private static final AtomicLong TOO_LARGE = new AtomicLong();
+    private static final AtomicLong INVALIDATIONS = new AtomicLong();
+    private static final AtomicLong EXPIRATIONS = new AtomicLong();
+    private static final AtomicLong EVICTIONS = new AtomicLong();
+
+    private GraphQLResultCache()
+    {
+    }
+
+    private static class Entry
+    {
+        final Object _data;
+        final Map<String, Long> _versions;
+        final String _state;
+        final long _values;
+        final long _expires;
+
+        Entry(Object data, Map<String, Long> versions, String state, long values)
+        {
+            _data = data;
+            _versions = versions;
+            _state = state;
+            _values = values;
+            _expires = System.currentTimeMillis() + TIME_TO_LIVE_MILLIS;
+        }
+    }
+
+    /**
+     * Key is "<container id>/<user id>/<schema name>/<query name>/<hash of normalized query and variables>".
+     */
+    public static String getKey(@NotNull Container c, @NotNull User user, @Nullable String schemaName, @Nullable String queryName, @NotNull Document document, @Nullable Map<String, Object> variables)
+    {
+        StringBuilder sb = new StringBuilder(AstPrinter.printAst(document));
+        sb.append('\n');
+        appendCanonical(sb, variables);
+        return c.getId() + "/" + user.getUserId() + "/" + schemaName + "/" + queryName + "/" + GraphQLDocumentCache.hash(sb.toString());
+    }
+
+    // Variables with their map keys sorted, so the same variables always hash the same
+    private static void appendCanonical(StringBuilder sb, @Nullable Object value)
+    {
+        if (value instanceof Map)
+        {
+            sb.append('{');
+            for (Map.Entry<?, ?> entry : new TreeMap<>((Map<?, ?>)value).entrySet())
+            {
+                sb.append(entry.getKey()).append(':');
+                appendCanonical(sb, entry.getValue());
+                sb.append(',');
+            }
+            sb.append('}');
+        }
+        else if (value instanceof Collection)
+        {
+            sb.append('[');
+            for (Object o : (Collection<?>)value)
+            {
+                appendCanonical(sb, o);
+                sb.append(',');
+            }
+            sb.append(']');
+        }
+        else if (value instanceof String)
+            sb.append('"').append(((String)value).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        else
+            sb.append(value);
+    }
+
+    /**
+     * @param state the current state of the query's tables (see {@link GraphQLETag#getETag})
+     * @return the cached result, or null if there isn't one or one of its tables has changed since it was cached
+     */
+    @Nullable
+    public static Object get(@NotNull String key, @NotNull String state)
+    {
+        REQUESTS.incrementAndGet();
+        synchronized (ENTRIES)
+        {
+            Entry entry = ENTRIES.get(key);
+            if (entry == null)
+                return null;
+
+            if (entry._expires < System.currentTimeMillis())
+            {
+                EXPIRATIONS.incrementAndGet();
+                remove(key);
+                return null;
+            }
+            if (!isCurrent(entry._versions) || !entry._state.equals(state))
+            {
+                INVALIDATIONS.incrementAndGet();
+                remove(key);
+                return null;
+            }
+
+            HITS.incrementAndGet();
+            return entry._data;
+        }
+    }
+
+    /**
+     * The latest table version.  Read it before executing a query and pass it to {@link #put}, so a result
+     * isn't cached if one of its tables changed while the query executed.
+     */
+    public static long getVersion()
+    {
+        return VERSION_COUNTER.get();
+    }
+
+    /**
+     * Cache a result.
+     *
+     * @param tableKeys the tables the query read (see {@link #getTableKey})
+     * @param since the version read by {@link #getVersion()} before the query executed
+     * @param state the state of the same tables, also computed before the query executed
+     */
+    public static void put(@NotNull String key, @Nullable Object data, @NotNull Collection<String> tableKeys, long since, @NotNull String state)
+    {
+        Map<String, Long> versions = getVersions(tableKeys);
+        for (Long version : versions.values())
+        {
+            if (version > since)
+                return;
+        }
+
+        long values = countValues(data, MAX_ENTRY_VALUES);
+        if (values > MAX_ENTRY_VALUES)
+        {
+            TOO_LARGE.incrementAndGet();
+            return;
+        }
+
+        PUTS.incrementAndGet();
+        synchronized (ENTRIES)
+        {
+            remove(key);
+            ENTRIES.put(key, new Entry(data, versions, state, values));
+            _totalValues += values;
+
+            Iterator<Map.Entry<String, Entry>> it = ENTRIES.entrySet().iterator();
+            while (_totalValues > MAX_TOTAL_VALUES && it.hasNext())
+            {
+                Map.Entry<String, Entry> eldest = it.next();
+                if (eldest.getKey().equals(key))
+                    continue;
+                it.remove();
+                _totalValues -= eldest.getValue()._values;
+                EVICTIONS.incrementAndGet();
+            }
+        }
+    }
+
+    // Must hold the ENTRIES lock
+    private static void remove(String key)
+    {
+        Entry removed = ENTRIES.remove(key);
+        if (removed != null)
+            _totalValues -= removed._values;
+    }
+
+    // Number of values in the result, counting no further than max
+    private static long countValues(@Nullable Object data, long max)
+    {
+        long count = 1;
+        if (data instanceof Map)
+        {
+            for (Object value : ((Map<?, ?>)data).values())
+            {
+                count += countValues(value, max - count);
+                if (count > max)
+                    break;
+            }
+        }
+        else if (data instanceof List)
+        {
+            for (Object value : (List<?>)data)
+            {
+                count += countValues(value, max - count);
+                if (count > max)
+                    break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Key of the table's data: "<container id>/<schema>.<table>".
+     *
+     * @return the key, or null if the table doesn't belong to a user schema
+     */
+    @Nullable
+    public static String getTableKey(@NotNull TableInfo table)
+    {
+        UserSchema schema = table.getUserSchema();
+        if (schema == null)
+            return null;
+        return getTableKey(schema.getContainer().getId(), schema.getSchemaName(), table.getName());
+    }
+
+    private static String getTableKey(String containerId, String schemaName, String tableName)
+    {
+        return containerId + "/" + (schemaName + "." + tableName).toLowerCase();
+    }
+
+    // Current versions of the tables and of the containers and table names they depend on
+    private static Map<String, Long> getVersions(@NotNull Collection<String> tableKeys)
+    {
+        Map<String, Long> ret = new HashMap<>();
+        for (String tableKey : tableKeys)
+        {
+            for (String dependency : getDependencies(tableKey))
+                ret.put(dependency, VERSIONS.getOrDefault(dependency, 0L));
+        }
+        return ret;
+    }
+
+    /**
+     * The version of the table's data as changed through this module, for validators (see {@link GraphQLETag}).
+     */
+    public static String getTableVersion(@NotNull String tableKey)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String dependency : getDependencies(tableKey))
+            sb.append(VERSIONS.getOrDefault(dependency, 0L)).append('.');
+        return sb.toString();
+    }
+
+    private static boolean isCurrent(Map<String, Long> versions)
+    {
+        for (Map.Entry<String, Long> entry : versions.entrySet())
+        {
+            if (!entry.getValue().equals(VERSIONS.getOrDefault(entry.getKey(), 0L)))
+                return false;
+        }
+        return true;
+    }
+
+    // A table's data changes with the table itself, its container, or that table in every container
+    private static String[] getDependencies(String tableKey)
+    {
+        int slash = tableKey.indexOf('/');
+        return new String[]{tableKey, tableKey.substring(0, slash), ALL_CONTAINERS + tableKey.substring(slash)};
+    }
+
+    /** The table's rows have changed. */
+    public static void uncache(@NotNull TableInfo table)
+    {
+        String tableKey = getTableKey(table);
+        if (tableKey != null)
+            VERSIONS.put(tableKey, VERSION_COUNTER.incrementAndGet());
+    }
+
+    /** Any table in the container may have changed, along with the container's row in every core.Containers. */
+    public static void uncache(@NotNull Container c)
+    {
+        VERSIONS.put(c.getId(), VERSION_COUNTER.incrementAndGet());
+        VERSIONS.put(getTableKey(ALL_CONTAINERS, "core", "Containers"), VERSION_COUNTER.incrementAndGet());
+    }
+
+    public static void uncacheUsers()
+    {
+        VERSIONS.put(getTableKey(ALL_CONTAINERS, "core", "Users"), VERSION_COUNTER.incrementAndGet());
+    }
+
+    public static void clear()
+    {
+        synchronized (ENTRIES)
+        {
+            ENTRIES.clear();
+            _totalValues = 0;
+        }
+    }
+
+    public static Map<String, Object> getStats()
+    {
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("requests", REQUESTS.get());
+        ret.put("hits", HITS.get());
+        ret.put("misses", REQUESTS.get() - HITS.get());
+        ret.put("puts", PUTS.get());
+        ret.put("tooLarge", TOO_LARGE.get());
+        ret.put("invalidations", INVALIDATIONS.get());
+        ret.put("expirations", EXPIRATIONS.get());
+        ret.put("evictions", EVICTIONS.get());
+        synchronized (ENTRIES)
+        {
+            ret.put("entries", ENTRIES.size());
+            ret.put("values", _totalValues);
+        }
+        return ret;
+    }
+
+    /**
+     * The sequence of QueryAction in a folder with both ConditionalGet and ResultCache set: the state of the query's
+     * tables is both the ETag sent and the version a cached result must have to be used.
+     */
+    public static class TestCase extends Assert
+    {
+        private static final String KEY = "test/0/core/Users/abc";
+        private static final String TABLE_KEY = "test/lists.things";
+
+        @After
+        public void cleanup()
+        {
+            synchronized (ENTRIES)
+            {
+                remove(KEY);
+            }
+            VERSIONS.remove(TABLE_KEY);
+        }
+
+        @Test
+        public void testConditionalGetWithResultCache()
+        {
+            // first execution: the body is cached under the tag that was sent with it
+            String tag1 = "W/\"1\"";
+            put(KEY, Collections.singletonMap("Name", "before"), Collections.singleton(TABLE_KEY), getVersion(), tag1);
+            assertEquals(Collections.singletonMap("Name", "before"), get(KEY, tag1));
+            assertTrue(GraphQLETag.matches(tag1, tag1));
+
+            // the table changes outside GraphQL: the new state is sent as the ETag, the client's copy doesn't
+            // match it, and the cached body isn't used with it
+            String tag2 = "W/\"2\"";
+            assertFalse(GraphQLETag.matches(tag1, tag2));
+            assertNull(get(KEY, tag2));
+
+            // the re-executed body is cached under the new tag; the old tag never gets it back
+            put(KEY, Collections.singletonMap("Name", "after"), Collections.singleton(TABLE_KEY), getVersion(), tag2);
+            assertNull(get(KEY, tag1));
+            assertEquals(Collections.singletonMap("Name", "after"), get(KEY, tag2));
+        }
+
+        @Test
+        public void testVersionChange()
+        {
+            String tag = "W/\"1\"";
+            long since = getVersion();
+            put(KEY, Collections.singletonMap("Name", "a"), Collections.singleton(TABLE_KEY), since, tag);
+            assertNotNull(get(KEY, tag));
+
+            // changed through the module, e.g. by a mutation
+            VERSIONS.put(TABLE_KEY, VERSION_COUNTER.incrementAndGet());
+            assertNull(get(KEY, tag));
+
+            // a result whose tables changed while it executed isn't cached
+            put(KEY, Collections.singletonMap("Name", "b"), Collections.singleton(TABLE_KEY), since, tag);
+            assertNull(get(KEY, tag));
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.schema.DataFetcher;
+import graphql.schema.DataFetchingEnvironment;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.Selector;
+
+import java.sql.ResultSetMetaData;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A row of a select: the values in an array, with the column names and their (case-insensitive) ordinals
+ * held once in a {@link Shape} shared by every row of the select, instead of a hash map per row.
+ *
+ * Scalar fields read their value with a {@link #fetcher(String) column fetcher}, which resolves the column's
+ * ordinal once per shape rather than looking the name up in every row.  Rows are still Maps, so lookups,
+ * links and cursors read them by name.  Values put under names outside the shape (there are none in the
+ * module today) are kept in a small map of their own.
+ */
+public class GraphQLRow extends AbstractMap<String, Object>
+{
+    private final Shape _shape;
+    private final Object[] _values;
+    private @Nullable Map<String, Object> _extra;
+
+    /** The column names of a select, in ordinal order. */
+    public static class Shape
+    {
+        private final String[] _names;
+        private final Map<String, Integer> _ordinals = new CaseInsensitiveHashMap<>();
+
+        public Shape(@NotNull List<String> names)
+        {
+            _names = names.toArray(new String[names.size()]);
+            for (int i = 0; i < _names.length; i++)
+                _ordinals.putIfAbsent(_names[i], i);
+        }
+
+        /**
+         * @return the column's ordinal, or -1 if it isn't part of the shape
+         */
+        public int getOrdinal(@NotNull String name)
+        {
+            Integer ordinal = _ordinals.get(name);
+            return ordinal != null ? ordinal : -1;
+        }
+
+        public int size()
+        {
+            return _names.length;
+        }
+    }
+
+    public GraphQLRow(@NotNull Shape shape)
+    {
+        _shape = shape;
+        _values = new Object[shape.size()];
+    }
+
+    public Shape getShape()
+    {
+        return _shape;
+    }
+
+    public Object getValue(int ordinal)
+    {
+        return _values[ordinal];
+    }
+
+    public void setValue(int ordinal, Object value)
+    {
+        _values[ordinal] = value;
+    }
+
+    @Override
+    public Object get(Object key)
+    {
+        if (!(key instanceof String))
+            return null;
+        int ordinal = _shape.getOrdinal((String)key);
+        if (ordinal >= 0)
+            return _values[ordinal];
+        return _extra != null ? _extra.get(key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        if (!(key instanceof String))
+            return false;
+        return _shape.getOrdinal((String)key) >= 0 || (_extra != null && _extra.containsKey(key));
+    }
+
+    @Override
+    public Object put(String key, Object value)
+    {
+        int ordinal = _shape.getOrdinal(key);
+        if (ordinal >= 0)
+        {
+            Object previous = _values[ordinal];
+            _values[ordinal] = value;
+            return previous;
+        }
+
+        if (_extra == null)
+            _extra = new CaseInsensitiveHashMap<>();
+        return _extra.put(key, value);
+    }
+
+    @Override
+    public int size()
+    {
+        return _values.length + (_extra != null ? _extra.size() : 0);
+    }
+
+    @NotNull
+    @Override
+    public Set<Entry<String, Object>> entrySet()
+    {
+        return new AbstractSet<Entry<String, Object>>()
+        {
+            @Override
+            public Iterator<Entry<String, Object>> iterator()
+            {
+                Iterator<Entry<String, Object>> extra = _extra != null ? _extra.entrySet().iterator() : Collections.emptyIterator();
+                return new Iterator<Entry<String, Object>>()
+                {
+                    private int _ordinal;
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return _ordinal < _values.length || extra.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next()
+                    {
+                        if (_ordinal < _values.length)
+                        {
+                            int ordinal = _ordinal++;
+                            return new SimpleImmutableEntry<>(_shape._names[ordinal], _values[ordinal]);
+                        }
+                        if (!extra.hasNext())
+                            throw new NoSuchElementException();
+                        return extra.next();
+                    }
+                };
+            }
+
+            @Override
+            public int size()
+            {
+                return GraphQLRow.this.size();
+            }
+        };
+    }
+
+    /**
+     * Read the rows of the select, keyed by the result set's column labels like Selector.getMapCollection().
+     */
+    public static List<Map<String, Object>> select(@NotNull Selector selector)
+    {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        Shape[] shape = new Shape[1];
+        selector.forEach(rs -> {
+            if (shape[0] == null)
+            {
+                ResultSetMetaData md = rs.getMetaData();
+                List<String> names = new ArrayList<>(md.getColumnCount());
+                for (int i = 1; i <= md.getColumnCount(); i++)
+                    names.add(md.getColumnLabel(i));
+                shape[0] = new Shape(names);
+            }
+
+            GraphQLRow row = new GraphQLRow(shape[0]);
+            for (int i = 0; i < row._values.length; i++)
+                row._values[i] = rs.getObject(i + 1);
+            rows.add(row);
+        });
+        return rows;
+    }
+
+    /**
+     * Get a data fetcher for a scalar field read from the column of the source row.
+     */
+    public static DataFetcher fetcher(@NotNull String name)
+    {
+        return new ColumnFetcher(name);
+    }
+
+    /**
+     * Reads a column from a GraphQLRow by ordinal.  Every row of a select shares its shape, so the ordinal is
+     * resolved once for the first row and reused until a row of another select comes along.
+     */
+    public static class ColumnFetcher implements DataFetcher<Object>
+    {
+        private final String _name;
+        private volatile Binding _binding;
+
+        private static class Binding
+        {
+            final Shape _shape;
+            final int _ordinal;
+
+            Binding(Shape shape, int ordinal)
+            {
+                _shape = shape;
+                _ordinal = ordinal;
+            }
+        }
+
+        ColumnFetcher(String name)
+        {
+            _name = name;
+        }
+
+        @Override
+        public Object get(DataFetchingEnvironment env)
+        {
+            Object source = env.getSource();
+            if (source instanceof GraphQLRow)
+            {
+                GraphQLRow row = (GraphQLRow)source;
+                Binding binding = _binding;
+                if (binding == null || binding._shape != row._shape)
+                    _binding = binding = new Binding(row._shape, row._shape.getOrdinal(_name));
+                return binding._ordinal >= 0 ? row._values[binding._ordinal] : row.get(_name);
+            }
+            if (source instanceof Map)
+                return ((Map)source).get(_name);
+            return null;
+        }
+    }
+}
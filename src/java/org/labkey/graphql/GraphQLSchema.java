@@ -18,6 +18,7 @@ package org.labkey.graphql;
 
 import org.labkey.api.data.DbSchema;
 import org.labkey.api.data.DbSchemaType;
+import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.dialect.SqlDialect;
 
 public class GraphQLSchema
@@ -46,4 +47,9 @@ public class GraphQLSchema
     {
         return getSchema().getSqlDialect();
     }
+
+    public TableInfo getTableInfoPersistedQuery()
+    {
+        return getSchema().getTable("PersistedQuery");
+    }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.schema.GraphQLSchema;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.cache.StringKeyCache;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.exp.OntologyManager;
+import org.labkey.api.query.UserSchema;
+import org.labkey.api.security.User;
+import org.labkey.api.security.permissions.Permission;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Caches the GraphQL schema built for a table, or for a set of tables of a UserSchema.  Building the schema walks every column and
+ * every lookup table, so we only want to do it once per container, query, and set of
+ * effective permissions.
+ *
+ * A container's schemas include the types of lookup tables in other containers, so the cache remembers which
+ * containers each container's types were created from (see {@link GraphQLTypeRegistry#getContainerIds}) and a
+ * change in one of them drops the dependent containers' schemas too.  Domain edits (e.g. adding a property to a
+ * list) don't fire query change events, so the domains of those containers are also compared with their state
+ * when last checked, at most every {@link #DOMAIN_CHECK_INTERVAL} ms per container.
+ *
+ * Data fetchers in a cached schema must not use the TableInfos captured during the build
+ * directly; see {@link GraphQLRequestContext#getTable(TableInfo)}.
+ */
+public class GraphQLSchemaCache
+{
+    private static final StringKeyCache<GraphQLSchema> SCHEMA_CACHE = CacheManager.getStringKeyCache(1000, CacheManager.HOUR, "GraphQL schemas");
+    private static final StringKeyCache<GraphQLTypeRegistry> TYPE_REGISTRY_CACHE = CacheManager.getStringKeyCache(1000, CacheManager.HOUR, "GraphQL type registries");
+
+    static final long DOMAIN_CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+    // container id -> ids of the containers with cached types created from its tables
+    private static final Map<String, Set<String>> DEPENDENTS = new ConcurrentHashMap<>();
+
+    // container id -> state of the container's domains when last checked
+    private static final Map<String, DomainState> DOMAIN_STATES = new ConcurrentHashMap<>();
+
+    private static class DomainState
+    {
+        private final long _checked;
+        private final int _hash;
+
+        DomainState(long checked, int hash)
+        {
+            _checked = checked;
+            _hash = hash;
+        }
+    }
+
+    private GraphQLSchemaCache()
+    {
+    }
+
+    public static GraphQLSchema getSchema(@NotNull TableInfo table)
+    {
+        UserSchema schema = table.getUserSchema();
+        checkDomains(schema);
+        String key = getCacheKey(schema.getContainer(), schema.getUser(), schema.getSchemaName(), table.getName());
+        return SCHEMA_CACHE.get(key, null, (k, argument) -> {
+            GraphQLSchema ret = GraphQLController.createSchema(table);
+            addDependents(schema);
+            return ret;
+        });
+    }
+
+    /**
+     * Get the GraphQL schema for the tables of the UserSchema.
+     *
+     * @param tableNames the tables to expose as root fields, or null for every table
+     */
+    public static GraphQLSchema getSchema(@NotNull UserSchema schema, @Nullable Set<String> tableNames)
+    {
+        checkDomains(schema);
+        String tables = tableNames == null ? "*" : "*" + String.join(",", new TreeSet<>(tableNames));
+        String key = getCacheKey(schema.getContainer(), schema.getUser(), schema.getSchemaName(), tables);
+        return SCHEMA_CACHE.get(key, null, (k, argument) -> {
+            GraphQLSchema ret = GraphQLController.createSchema(schema, tableNames);
+            addDependents(schema);
+            return ret;
+        });
+    }
+
+    /**
+     * Get the table types shared by the schemas built for the user's effective permissions in the schema's container.
+     */
+    public static GraphQLTypeRegistry getTypeRegistry(@NotNull UserSchema schema)
+    {
+        String key = schema.getContainer().getId() + "/" + getPermissionsKey(schema.getContainer(), schema.getUser());
+        return TYPE_REGISTRY_CACHE.get(key, null, (k, argument) -> new GraphQLTypeRegistry());
+    }
+
+    // Key is "<container id>/<schema name>/<query name>/<permissions>" so entries can be removed by container prefix
+    private static String getCacheKey(Container c, User user, String schemaName, String queryName)
+    {
+        return c.getId() + "/" + schemaName + "/" + queryName + "/" + getPermissionsKey(c, user);
+    }
+
+    static String getPermissionsKey(Container c, User user)
+    {
+        Set<Class<? extends Permission>> perms = c.getPolicy().getPermissions(user);
+        return perms.stream()
+                .map(Class::getName)
+                .sorted()
+                .collect(Collectors.joining(","));
+    }
+
+    // Record that the schema's container has types created from the tables of each container its registry has used
+    private static void addDependents(UserSchema schema)
+    {
+        String containerId = schema.getContainer().getId();
+        for (String dependency : getTypeRegistry(schema).getContainerIds())
+        {
+            if (!dependency.equals(containerId))
+                DEPENDENTS.computeIfAbsent(dependency, id -> ConcurrentHashMap.newKeySet()).add(containerId);
+        }
+    }
+
+    // Drop the schemas that depend on a container whose domains changed since they were last checked
+    private static void checkDomains(UserSchema schema)
+    {
+        Set<String> containerIds = new HashSet<>(getTypeRegistry(schema).getContainerIds());
+        containerIds.add(schema.getContainer().getId());
+
+        long now = System.currentTimeMillis();
+        for (String containerId : containerIds)
+        {
+            DomainState state = DOMAIN_STATES.get(containerId);
+            if (state != null && now - state._checked < DOMAIN_CHECK_INTERVAL)
+                continue;
+
+            Container c = ContainerManager.getForId(containerId);
+            if (c == null)
+                continue;
+
+            int hash = getDomainHash(c);
+            DOMAIN_STATES.put(containerId, new DomainState(now, hash));
+            if (state != null && state._hash != hash)
+            {
+                uncache(c);
+                GraphQLResultCache.uncache(c);
+            }
+        }
+    }
+
+    // Hash of the properties of the container's domains: their names, types, lookups and descriptions
+    static int getDomainHash(@NotNull Container c)
+    {
+        SQLFragment sql = new SQLFragment("SELECT pdom.DomainId, pdom.SortOrder, pdom.Required, pd.PropertyId, pd.Name, pd.RangeURI, " +
+                "pd.LookupContainer, pd.LookupSchema, pd.LookupQuery, pd.Description FROM ")
+                .append(OntologyManager.getTinfoPropertyDomain().getSelectName()).append(" pdom JOIN ")
+                .append(OntologyManager.getTinfoPropertyDescriptor().getSelectName()).append(" pd ON pdom.PropertyId = pd.PropertyId JOIN ")
+                .append(OntologyManager.getTinfoDomainDescriptor().getSelectName()).append(" dd ON pdom.DomainId = dd.DomainId ")
+                .append("WHERE dd.Container = ? ORDER BY pdom.DomainId, pd.PropertyId").add(c);
+        return new ArrayList<>(new SqlSelector(OntologyManager.getExpSchema(), sql).getMapCollection()).hashCode();
+    }
+
+    /**
+     * Drop the container's schemas and type registries, and those of the containers with types created from its tables.
+     */
+    public static void uncache(@NotNull Container c)
+    {
+        SCHEMA_CACHE.removeUsingPrefix(c.getId() + "/");
+        TYPE_REGISTRY_CACHE.removeUsingPrefix(c.getId() + "/");
+
+        Set<String> dependents = DEPENDENTS.remove(c.getId());
+        if (dependents != null)
+        {
+            for (String dependent : dependents)
+            {
+                SCHEMA_CACHE.removeUsingPrefix(dependent + "/");
+                TYPE_REGISTRY_CACHE.removeUsingPrefix(dependent + "/");
+            }
+        }
+    }
+
+    public static void clear()
+    {
+        SCHEMA_CACHE.clear();
+        TYPE_REGISTRY_CACHE.clear();
+        DEPENDENTS.clear();
+        DOMAIN_STATES.clear();
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.language.Definition;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
+import graphql.language.FragmentSpread;
+import graphql.language.InlineFragment;
+import graphql.language.OperationDefinition;
+import graphql.language.Selection;
+import graphql.language.SelectionSet;
+import graphql.parser.Parser;
+import graphql.schema.DataFetchingEnvironment;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.cache.StringKeyCache;
+import org.labkey.api.data.AbstractTableInfo;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.util.StringExpression;
+import org.labkey.api.util.StringExpressionFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Helpers for looking ahead at the sub-fields requested of the field being fetched.
+ */
+public class GraphQLSelection
+{
+    // root field names by query hash; NO_ROOT_FIELDS stands for queries that need the whole schema
+    private static final StringKeyCache<Set<String>> ROOT_FIELD_NAMES = CacheManager.getStringKeyCache(5000, CacheManager.DAY, "GraphQL root field names");
+    private static final Set<String> NO_ROOT_FIELDS = Collections.unmodifiableSet(new HashSet<>());
+
+    private GraphQLSelection()
+    {
+    }
+
+    /**
+     * Get the sub-fields of the current field, by field name, with fragments expanded.
+     * The same field may appear more than once if it is selected in several fragments.
+     */
+    @NotNull
+    public static Map<String, List<Field>> getSelectedFields(@NotNull DataFetchingEnvironment env)
+    {
+        Map<String, List<Field>> ret = new LinkedHashMap<>();
+        for (Field field : env.getFields())
+            collectFields(field.getSelectionSet(), env.getFragmentsByName(), ret);
+        return ret;
+    }
+
+    /**
+     * Get the sub-fields of the given fields, by field name, with fragments expanded.
+     */
+    @NotNull
+    public static Map<String, List<Field>> getSelectedFields(@NotNull List<Field> fields, @NotNull Map<String, FragmentDefinition> fragments)
+    {
+        Map<String, List<Field>> ret = new LinkedHashMap<>();
+        for (Field field : fields)
+            collectFields(field.getSelectionSet(), fragments, ret);
+        return ret;
+    }
+
+    private static void collectFields(@Nullable SelectionSet selectionSet, Map<String, FragmentDefinition> fragments, Map<String, List<Field>> fields)
+    {
+        if (selectionSet == null)
+            return;
+
+        for (Selection selection : selectionSet.getSelections())
+        {
+            if (selection instanceof Field)
+            {
+                Field field = (Field)selection;
+                fields.computeIfAbsent(field.getName(), name -> new ArrayList<>()).add(field);
+            }
+            else if (selection instanceof InlineFragment)
+            {
+                collectFields(((InlineFragment)selection).getSelectionSet(), fragments, fields);
+            }
+            else if (selection instanceof FragmentSpread)
+            {
+                FragmentDefinition fragment = fragments.get(((FragmentSpread)selection).getName());
+                if (fragment != null)
+                    collectFields(fragment.getSelectionSet(), fragments, fields);
+            }
+        }
+    }
+
+    /**
+     * Parse the query and get the names of the fields selected on the root type by any of its operations.  The names
+     * are cached by the query's hash, since whole-schema requests ask for them every time.
+     *
+     * @return the root field names, or null if the query can't be parsed or uses introspection and so needs the whole schema
+     */
+    @Nullable
+    public static Set<String> getRootFieldNames(@NotNull String query)
+    {
+        String hash = GraphQLDocumentCache.hash(query);
+        Set<String> ret = ROOT_FIELD_NAMES.get(hash);
+        if (ret == null)
+        {
+            ret = parseRootFieldNames(query);
+            ret = ret != null ? Collections.unmodifiableSet(ret) : NO_ROOT_FIELDS;
+            ROOT_FIELD_NAMES.put(hash, ret);
+        }
+        return ret != NO_ROOT_FIELDS ? ret : null;
+    }
+
+    // the uncached work of getRootFieldNames, also measured by ParseValidateBenchmark
+    @Nullable
+    static Set<String> parseRootFieldNames(String query)
+    {
+        Document document;
+        try
+        {
+            document = new Parser().parseDocument(query);
+        }
+        catch (ParseCancellationException e)
+        {
+            return null;
+        }
+
+        Map<String, FragmentDefinition> fragments = new HashMap<>();
+        for (Definition definition : document.getDefinitions())
+        {
+            if (definition instanceof FragmentDefinition)
+                fragments.put(((FragmentDefinition)definition).getName(), (FragmentDefinition)definition);
+        }
+
+        Map<String, List<Field>> fields = new LinkedHashMap<>();
+        for (Definition definition : document.getDefinitions())
+        {
+            if (definition instanceof OperationDefinition)
+                collectFields(((OperationDefinition)definition).getSelectionSet(), fragments, fields);
+        }
+
+        Set<String> ret = new LinkedHashSet<>();
+        for (String name : fields.keySet())
+        {
+            if (name.startsWith("__") && !"__typename".equals(name))
+                return null;
+            ret.add(name);
+        }
+        return ret;
+    }
+
+    /**
+     * Get the columns to select from the table to resolve the requested sub-fields: the requested columns,
+     * the primary key columns, and the columns needed to render the "links" field.
+     *
+     * @return the columns to select, or null if all columns must be selected.
+     */
+    @Nullable
+    public static List<ColumnInfo> getSelectedColumns(@NotNull TableInfo table, @NotNull Set<String> fieldNames)
+    {
+        Set<ColumnInfo> columns = new LinkedHashSet<>(table.getPkColumns());
+
+        for (String name : fieldNames)
+        {
+            if ("links".equals(name))
+            {
+                if (!addURLColumns(table, table.getDetailsURL(null, null), columns) ||
+                    !addURLColumns(table, table.getUpdateURL(null, null), columns))
+                    return null;
+            }
+            else
+            {
+                ColumnInfo col = table.getColumn(name);
+                if (col != null)
+                    columns.add(col);
+            }
+        }
+
+        return new ArrayList<>(columns);
+    }
+
+    // Add the columns referenced by the URL expression.  Returns false if we can't tell which columns are needed.
+    private static boolean addURLColumns(TableInfo table, @Nullable StringExpression url, Set<ColumnInfo> columns)
+    {
+        if (url == null || url == AbstractTableInfo.LINK_DISABLER)
+            return true;
+
+        if (!(url instanceof StringExpressionFactory.FieldKeyStringExpression))
+            return false;
+
+        for (FieldKey fieldKey : ((StringExpressionFactory.FieldKeyStringExpression)url).getFieldKeys())
+        {
+            ColumnInfo col = table.getColumn(fieldKey);
+            if (col != null)
+                columns.add(col);
+        }
+
+        // DetailsURL may resolve its container from the row
+        ColumnInfo containerCol = table.getColumn("Container");
+        if (containerCol != null)
+            columns.add(containerCol);
+
+        return true;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import graphql.ExecutionInput;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.GraphQLError;
+import graphql.execution.preparsed.PreparsedDocumentEntry;
+import graphql.language.Definition;
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
+import graphql.language.OperationDefinition;
+import graphql.language.Selection;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLSchema;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.Container;
+import org.labkey.api.security.User;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the rows of a single list root field (see {@link GraphQLConnection}) to the response.
+ *
+ * The query is executed one page at a time, continuing from the cursor where the previous page ended, and each
+ * page's nodes are written with a Jackson generator before the next page is resolved.  The response has the same
+ * shape as a non-streamed response, but only one page of rows and their lookups is in memory at a time.
+ * The query's 'first' argument limits the total number of rows written.
+ *
+ * Only the "nodes" and "pageInfo" sub-fields are supported -- "edges" can't be streamed alongside "nodes".
+ */
+public class GraphQLStreamWriter
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final GraphQL _graphQL;
+    private final String _query;
+    private final Map<String, Object> _variables;
+    private final User _user;
+    private final Container _container;
+
+    private final String _responseKey;
+    private final boolean _includePageInfo;
+
+    private GraphQLStreamWriter(GraphQL graphQL, String query, Map<String, Object> variables, User user, Container container, String responseKey, boolean includePageInfo)
+    {
+        _graphQL = graphQL;
+        _query = query;
+        _variables = variables;
+        _user = user;
+        _container = container;
+        _responseKey = responseKey;
+        _includePageInfo = includePageInfo;
+    }
+
+    /**
+     * Create a writer for the query, or throw IllegalArgumentException if the query can't be streamed.
+     * The query must be valid for the schema.
+     */
+    public static GraphQLStreamWriter create(@NotNull GraphQL graphQL, @NotNull GraphQLSchema schema,
+                                             @NotNull String query, @Nullable Map<String, Object> variables,
+                                             @NotNull User user, @NotNull Container container)
+    {
+        PreparsedDocumentEntry entry = GraphQLDocumentCache.getDocument(schema, query);
+        if (entry.hasErrors())
+            throw new IllegalArgumentException(entry.getErrors().get(0).getMessage());
+
+        List<OperationDefinition> operations = new ArrayList<>();
+        Map<String, FragmentDefinition> fragments = new HashMap<>();
+        for (Definition definition : entry.getDocument().getDefinitions())
+        {
+            if (definition instanceof OperationDefinition)
+                operations.add((OperationDefinition)definition);
+            else if (definition instanceof FragmentDefinition)
+                fragments.put(((FragmentDefinition)definition).getName(), (FragmentDefinition)definition);
+        }
+        if (operations.size() != 1 || operations.get(0).getOperation() != OperationDefinition.Operation.QUERY)
+            throw new IllegalArgumentException("Streaming requires a document with a single query operation");
+
+        List<Selection> selections = operations.get(0).getSelectionSet().getSelections();
+        if (selections.size() != 1 || !(selections.get(0) instanceof Field))
+            throw new IllegalArgumentException("Streaming requires a query with a single list field");
+
+        Field field = (Field)selections.get(0);
+        GraphQLFieldDefinition fieldDef = schema.getQueryType().getFieldDefinition(field.getName());
+        if (fieldDef == null || fieldDef.getArgument("after") == null || !(fieldDef.getType().getName().endsWith("Connection")))
+            throw new IllegalArgumentException("Streaming requires a query with a single list field");
+
+        Map<String, List<Field>> subFields = GraphQLSelection.getSelectedFields(Collections.singletonList(field), fragments);
+        if (!subFields.containsKey("nodes") || subFields.containsKey("edges"))
+            throw new IllegalArgumentException("Streaming requires selecting 'nodes' and not 'edges' of the list field");
+
+        String responseKey = field.getAlias() != null ? field.getAlias() : field.getName();
+        return new GraphQLStreamWriter(graphQL, query, variables != null ? variables : Collections.emptyMap(),
+                user, container, responseKey, subFields.containsKey("pageInfo"));
+    }
+
+    public void write(@NotNull HttpServletResponse response, int pageSize) throws IOException
+    {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        try (JsonGenerator gen = MAPPER.getFactory().createGenerator(response.getOutputStream()))
+        {
+            gen.writeStartObject();
+            gen.writeObjectFieldStart(_responseKey);
+            gen.writeArrayFieldStart("nodes");
+
+            List<GraphQLError> errors = Collections.emptyList();
+            String after = null;
+            int written = 0;
+            boolean hasNextPage;
+            Integer limit;
+
+            do
+            {
+                GraphQLConnection.StreamPage page = new GraphQLConnection.StreamPage(after, pageSize, written);
+
+                // a new context for each page so the loaders' caches don't grow with the result
+                GraphQLRequestContext ctx = new GraphQLRequestContext(_user, _container);
+                ctx.setStreamPage(page);
+
+                ExecutionResult result = _graphQL.execute(ExecutionInput.newExecutionInput()
+                        .query(_query)
+                        .variables(_variables)
+                        .context(ctx)
+                        .build());
+
+                if (!result.getErrors().isEmpty())
+                {
+                    errors = result.getErrors();
+                    hasNextPage = false;
+                    break;
+                }
+
+                Map<String, Object> data = result.getData();
+                Map<String, Object> connection = (Map<String, Object>)data.get(_responseKey);
+                List<Object> nodes = connection != null ? (List<Object>)connection.get("nodes") : null;
+                if (nodes != null)
+                {
+                    for (Object node : nodes)
+                        gen.writeObject(node);
+                    written += nodes.size();
+                }
+                gen.flush();
+
+                after = page.getEndCursor();
+                hasNextPage = page.hasNextPage();
+                limit = page.getLimit();
+            }
+            while (hasNextPage && after != null && (limit == null || written < limit));
+
+            gen.writeEndArray();
+
+            if (_includePageInfo)
+            {
+                gen.writeObjectFieldStart("pageInfo");
+                gen.writeBooleanField("hasNextPage", hasNextPage);
+                gen.writeStringField("endCursor", after);
+                gen.writeEndObject();
+            }
+
+            gen.writeEndObject();
+
+            // the status has already been sent, so report errors in the body
+            if (!errors.isEmpty())
+            {
+                gen.writeArrayFieldStart("errors");
+                for (GraphQLError error : errors)
+                {
+                    gen.writeStartObject();
+                    gen.writeStringField("message", error.getMessage());
+                    gen.writeEndObject();
+                }
+                gen.writeEndArray();
+            }
+
+            gen.writeEndObject();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.Filter;
+import org.labkey.api.data.Sort;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.query.QueryService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The execution trace of one request, returned in the response's extensions when the 'trace' flag is set:
+ * the time of each phase, and for each resolved path its start offset and duration and the SQL it issued.
+ * Times are in microseconds from the start of the request.  Only the first {@link #MAX_FIELDS} resolved
+ * paths are traced.
+ */
+public class GraphQLTrace
+{
+    public static final int MAX_FIELDS = 5000;
+
+    private final long _start = System.nanoTime();
+    private final Map<String, Long> _phases = new LinkedHashMap<>();
+    private final List<Field> _fields = new ArrayList<>();
+    private int _sqlStatements;
+    private boolean _truncated;
+
+    /** One resolved path. */
+    public static class Field
+    {
+        private final String _path;
+        private final String _field;
+        private final long _start;
+        private long _duration = -1;
+        private final List<Map<String, Object>> _sql = new ArrayList<>(1);
+
+        Field(String path, String field, long start)
+        {
+            _path = path;
+            _field = field;
+            _start = start;
+        }
+    }
+
+    private long micros(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Record a phase (e.g., "schema" or "execute") that started at 'start' (System.nanoTime()) and just ended.
+     */
+    public synchronized void addPhase(@NotNull String phase, long start)
+    {
+        _phases.put(phase, micros(System.nanoTime() - start));
+    }
+
+    /**
+     * @return the traced path, or null if the trace is full
+     */
+    @Nullable
+    public synchronized Field beginField(@NotNull String path, @NotNull String field)
+    {
+        if (_fields.size() >= MAX_FIELDS)
+        {
+            _truncated = true;
+            return null;
+        }
+
+        Field ret = new Field(path, field, System.nanoTime());
+        _fields.add(ret);
+        return ret;
+    }
+
+    public synchronized void endField(@NotNull Field field)
+    {
+        field._duration = System.nanoTime() - field._start;
+    }
+
+    public synchronized void addSql(@Nullable Field field, @Nullable String sql, int rows, long nanos)
+    {
+        _sqlStatements++;
+        if (field == null)
+            return;
+
+        Map<String, Object> statement = new LinkedHashMap<>();
+        statement.put("sql", sql);
+        statement.put("rows", rows);
+        statement.put("duration", micros(nanos));
+        field._sql.add(statement);
+    }
+
+    public synchronized Map<String, Object> toMap()
+    {
+        List<Map<String, Object>> fields = new ArrayList<>(_fields.size());
+        for (Field field : _fields)
+        {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("path", field._path);
+            map.put("field", field._field);
+            map.put("startOffset", micros(field._start - _start));
+            map.put("duration", field._duration < 0 ? null : micros(field._duration));
+            if (!field._sql.isEmpty())
+                map.put("sql", field._sql);
+            fields.add(map);
+        }
+
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("duration", micros(System.nanoTime() - _start));
+        ret.put("phases", _phases);
+        ret.put("sqlStatements", _sqlStatements);
+        ret.put("fields", fields);
+        if (_truncated)
+            ret.put("truncated", true);
+        return ret;
+    }
+
+    /**
+     * Describe the SQL a TableSelector runs for the table, columns, filter and sort, for a trace.
+     */
+    public static Supplier<String> describe(@NotNull TableInfo table, @Nullable Collection<ColumnInfo> columns, @Nullable Filter filter, @Nullable Sort sort)
+    {
+        return () -> QueryService.get().getSelectSQL(table, columns != null ? columns : table.getColumns(), filter, sort, Table.ALL_ROWS, Table.NO_OFFSET, false).getSQL();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLOutputType;
+import graphql.schema.GraphQLType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.Container;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import static graphql.schema.GraphQLTypeReference.typeRef;
+
+/**
+ * Name-indexed GraphQL object types for the tables of a container, shared by every schema built for users
+ * with the same effective permissions in that container (see {@link GraphQLSchemaCache#getTypeRegistry}).
+ *
+ * Table types only refer to other table types by name, so a type is created once and reused by every schema
+ * that reaches it.  A reference to a type that is still being created (a recursive lookup) is just
+ * another type reference, so no placeholder types are needed.  For each type the registry remembers the
+ * types it refers to, so a schema is built with exactly the types reachable from its root fields.
+ */
+public class GraphQLTypeRegistry
+{
+    private static final AtomicLong _schemasBuilt = new AtomicLong();
+    private static final AtomicLong _buildNanos = new AtomicLong();
+    private static final AtomicLong _typesCreated = new AtomicLong();
+    private static final AtomicLong _typesReused = new AtomicLong();
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Map<String, GraphQLType> _types = new HashMap<>();
+    private final Map<String, Set<String>> _references = new HashMap<>();
+    private final Set<String> _missing = new HashSet<>();
+
+    // ids of the containers of the tables the registry's types were created from
+    private final Set<String> _containerIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Start building a schema.  Only one schema is built from a registry at a time; close the builder when done.
+     */
+    public Builder build()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Collects the types referenced while building one schema.
+     */
+    public class Builder implements AutoCloseable
+    {
+        private final long _start = System.nanoTime();
+
+        // names referenced by the schema's own types (e.g., the Query type) and by the types being created
+        private final Set<String> _referenced = new LinkedHashSet<>();
+        private final Deque<Set<String>> _creating = new ArrayDeque<>();
+        private final Set<String> _creatingNames = new HashSet<>();
+
+        private Builder()
+        {
+            _lock.lock();
+        }
+
+        /**
+         * Get a reference to the named type, creating the type if it isn't in the registry yet.
+         *
+         * @param creator creates the type, or returns null if it can't be created (e.g., the lookup table doesn't exist)
+         * @return a reference to the type, or null if it couldn't be created
+         */
+        @Nullable
+        public GraphQLOutputType ensureType(@NotNull String typeName, @NotNull Supplier<GraphQLObjectType> creator)
+        {
+            if (_missing.contains(typeName))
+                return null;
+
+            Set<String> referencedBy = _creating.isEmpty() ? _referenced : _creating.peek();
+            referencedBy.add(typeName);
+
+            if (_types.containsKey(typeName))
+            {
+                _typesReused.incrementAndGet();
+                return typeRef(typeName);
+            }
+
+            // recursive reference to a type we're still creating
+            if (_creatingNames.contains(typeName))
+                return typeRef(typeName);
+
+            Set<String> references = new LinkedHashSet<>();
+            _creating.push(references);
+            _creatingNames.add(typeName);
+            GraphQLObjectType type;
+            try
+            {
+                type = creator.get();
+            }
+            catch (RuntimeException | Error e)
+            {
+                // types created along the way may refer to this one -- start over rather than keep dangling references
+                _types.clear();
+                _references.clear();
+                _missing.clear();
+                throw e;
+            }
+            finally
+            {
+                _creating.pop();
+                _creatingNames.remove(typeName);
+            }
+
+            if (type == null)
+            {
+                referencedBy.remove(typeName);
+                _missing.add(typeName);
+                return null;
+            }
+
+            _types.put(typeName, type);
+            _references.put(typeName, references);
+            _typesCreated.incrementAndGet();
+            return typeRef(typeName);
+        }
+
+        /**
+         * Record that a type is being created from a table in the container, so the registry, and the schemas
+         * built from it, can be dropped when that container's tables change.
+         */
+        public void addContainer(@Nullable Container c)
+        {
+            if (c != null)
+                _containerIds.add(c.getId());
+        }
+
+        /**
+         * Get the registry types reachable from the types referenced while building this schema.
+         */
+        public Set<GraphQLType> getTypes()
+        {
+            Set<GraphQLType> ret = new LinkedHashSet<>();
+            Set<String> seen = new HashSet<>();
+            Deque<String> pending = new ArrayDeque<>(_referenced);
+            while (!pending.isEmpty())
+            {
+                String name = pending.pop();
+                if (!seen.add(name))
+                    continue;
+
+                GraphQLType type = _types.get(name);
+                if (type != null)
+                    ret.add(type);
+                pending.addAll(_references.getOrDefault(name, Collections.emptySet()));
+            }
+            return ret;
+        }
+
+        @Override
+        public void close()
+        {
+            long nanos = System.nanoTime() - _start;
+            _schemasBuilt.incrementAndGet();
+            _buildNanos.addAndGet(nanos);
+            GraphQLMetrics.recordPhase(GraphQLMetrics.SCHEMA_BUILD, nanos);
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Get the ids of the containers whose tables the registry's types were created from.
+     */
+    public Set<String> getContainerIds()
+    {
+        return Collections.unmodifiableSet(_containerIds);
+    }
+
+    public static long getSchemasBuilt()
+    {
+        return _schemasBuilt.get();
+    }
+
+    public static long getBuildMillis()
+    {
+        return _buildNanos.get() / 1_000_000;
+    }
+
+    public static long getTypesCreated()
+    {
+        return _typesCreated.get();
+    }
+
+    public static long getTypesReused()
+    {
+        return _typesReused.get();
+    }
+}
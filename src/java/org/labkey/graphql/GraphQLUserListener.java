@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import org.labkey.api.security.User;
+import org.labkey.api.security.UserManager.UserListener;
+
+import java.beans.PropertyChangeEvent;
+
+/**
+ * Drops cached core.Users lookup rows when users change.
+ */
+public class GraphQLUserListener implements UserListener
+{
+    @Override
+    public void userAddedToSite(User user)
+    {
+        GraphQLLookupCache.uncacheUsers();
+        GraphQLResultCache.uncacheUsers();
+    }
+
+    @Override
+    public void userDeletedFromSite(User user)
+    {
+        GraphQLLookupCache.uncacheUsers();
+        GraphQLResultCache.uncacheUsers();
+    }
+
+    @Override
+    public void userAccountDisabled(User user)
+    {
+        GraphQLLookupCache.uncacheUsers();
+        GraphQLResultCache.uncacheUsers();
+    }
+
+    @Override
+    public void userAccountEnabled(User user)
+    {
+        GraphQLLookupCache.uncacheUsers();
+        GraphQLResultCache.uncacheUsers();
+    }
+
+    @Override
+    public void userPropertiesUpdated(int userid)
+    {
+        GraphQLLookupCache.uncacheUsers();
+        GraphQLResultCache.uncacheUsers();
+    }
+
+    @Override
+    public void propertyChange(PropertyChangeEvent evt)
+    {
+        GraphQLLookupCache.uncacheUsers();
+        GraphQLResultCache.uncacheUsers();
+    }
+}
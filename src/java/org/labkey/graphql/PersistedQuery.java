@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import org.labkey.api.data.Entity;
+
+/**
+ * A query document stored in graphql.PersistedQuery.
+ */
+public class PersistedQuery extends Entity
+{
+    private int _rowId;
+    private String _name;
+    private String _hash;
+    private String _query;
+
+    public int getRowId()
+    {
+        return _rowId;
+    }
+
+    public void setRowId(int rowId)
+    {
+        _rowId = rowId;
+    }
+
+    public String getName()
+    {
+        return _name;
+    }
+
+    public void setName(String name)
+    {
+        _name = name;
+    }
+
+    public String getHash()
+    {
+        return _hash;
+    }
+
+    public void setHash(String hash)
+    {
+        _hash = hash;
+    }
+
+    public String getQuery()
+    {
+        return _query;
+    }
+
+    public void setQuery(String query)
+    {
+        _query = query;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLList;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLOutputType;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLType;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static graphql.Scalars.GraphQLInt;
+import static graphql.Scalars.GraphQLString;
+import static graphql.schema.GraphQLArgument.newArgument;
+import static graphql.schema.GraphQLFieldDefinition.newFieldDefinition;
+import static graphql.schema.GraphQLObjectType.newObject;
+
+/**
+ * Synthetic schemas shaped like the module's table types, for the benchmarks.
+ *
+ * TableInfo and ColumnInfo need a running LabKey server, so the fixtures build the same shape of types
+ * directly: table "T{i}" has an Id, a Name, 'width' string columns, a "Next" lookup to the next table (the last
+ * one links back to the first, like the recursive lookups of the exp tables), a "CreatedBy" lookup to
+ * core__Users and a multi-valued "Values" lookup.  Types are created through {@link GraphQLTypeRegistry}
+ * exactly like the module's FK types.  Only the scalar fields have the module's fetcher; the benchmarks here build
+ * and validate schemas without executing against a database (see GraphQLExecutionBenchmark for that).
+ */
+public class BenchmarkFixture
+{
+    public static String tableName(int i)
+    {
+        return "T" + i;
+    }
+
+    /**
+     * @param tables number of linked tables
+     * @param width number of string columns per table
+     */
+    public static GraphQLSchema createSchema(GraphQLTypeRegistry registry, int tables, int width)
+    {
+        try (GraphQLTypeRegistry.Builder types = registry.build())
+        {
+            GraphQLOutputType rowType = ensureTableType(types, 0, tables, width);
+
+            GraphQLObjectType query = newObject()
+                    .name("Query")
+                    .field(newFieldDefinition()
+                            .name(tableName(0))
+                            .type(rowType)
+                            .argument(newArgument().name("Id").type(GraphQLInt).build())
+                            .build())
+                    .field(newFieldDefinition()
+                            .name(tableName(0) + "List")
+                            .type(new GraphQLList(rowType))
+                            .argument(newArgument().name("first").type(GraphQLInt).build())
+                            .build())
+                    .build();
+
+            Set<GraphQLType> additional = new HashSet<>(types.getTypes());
+            additional.add(GraphQLLinks.getLinkType());
+            return GraphQLSchema.newSchema().query(query).build(additional);
+        }
+    }
+
+    private static GraphQLOutputType ensureTableType(GraphQLTypeRegistry.Builder types, int i, int tables, int width)
+    {
+        String name = "bench__" + tableName(i);
+        return types.ensureType(name, () -> {
+            GraphQLObjectType.Builder type = newObject()
+                    .name(name)
+                    .field(scalar("Id", GraphQLInt))
+                    .field(scalar("Name", GraphQLString));
+
+            for (int c = 0; c < width; c++)
+                type.field(scalar("C" + c, GraphQLString));
+
+            type.field(newFieldDefinition()
+                    .name("Next")
+                    .type(ensureTableType(types, (i + 1) % tables, tables, width))
+                    .build());
+
+            type.field(newFieldDefinition()
+                    .name("CreatedBy")
+                    .type(ensureUsersType(types))
+                    .build());
+
+            type.field(newFieldDefinition()
+                    .name("Values")
+                    .type(new GraphQLList(ensureValueType(types)))
+                    .build());
+
+            return type.build();
+        });
+    }
+
+    private static GraphQLOutputType ensureUsersType(GraphQLTypeRegistry.Builder types)
+    {
+        return types.ensureType("core__Users", () -> newObject()
+                .name("core__Users")
+                .field(scalar("UserId", GraphQLInt))
+                .field(scalar("DisplayName", GraphQLString))
+                .field(scalar("Email", GraphQLString))
+                .field(newFieldDefinition()
+                        .name("CreatedBy")
+                        .type(ensureUsersType(types))
+                        .build())
+                .build());
+    }
+
+    private static GraphQLOutputType ensureValueType(GraphQLTypeRegistry.Builder types)
+    {
+        return types.ensureType("bench__V", () -> newObject()
+                .name("bench__V")
+                .field(scalar("Id", GraphQLInt))
+                .field(scalar("Name", GraphQLString))
+                .build());
+    }
+
+    private static GraphQLFieldDefinition scalar(String name, GraphQLOutputType type)
+    {
+        return newFieldDefinition()
+                .name(name)
+                .type(type)
+                .dataFetcher(GraphQLRow.fetcher(name))
+                .build();
+    }
+
+    /** A query selecting a chain of 'depth' Next lookups, each with CreatedBy, from a list of rows. */
+    public static String nestedQuery(int depth, int first)
+    {
+        StringBuilder sb = new StringBuilder("{ ").append(tableName(0)).append("List(first: ").append(first).append(") { Id Name C0 CreatedBy { DisplayName } ");
+        for (int d = 0; d < depth; d++)
+            sb.append("Next { Id Name CreatedBy { DisplayName Email } ");
+        for (int d = 0; d < depth; d++)
+            sb.append("} ");
+        return sb.append("} }").toString();
+    }
+}
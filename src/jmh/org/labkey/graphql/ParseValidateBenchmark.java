@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.language.Document;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLSchema;
+import graphql.validation.ValidationError;
+import graphql.validation.Validator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-request work done before execution when a query isn't in the document cache: parsing, validation,
+ * finding the root tables of a whole-schema query and cost analysis.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseValidateBenchmark
+{
+    @Param({"1", "4", "8"})
+    public int depth;
+
+    private GraphQLSchema _schema;
+    private String _query;
+    private Document _document;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        _schema = BenchmarkFixture.createSchema(new GraphQLTypeRegistry(), 10, 20);
+        _query = BenchmarkFixture.nestedQuery(depth, 100);
+        _document = new Parser().parseDocument(_query);
+
+        List<ValidationError> errors = new Validator().validateDocument(_schema, _document);
+        if (!errors.isEmpty())
+            throw new IllegalStateException("Invalid benchmark query: " + errors);
+    }
+
+    @Benchmark
+    public Document parse()
+    {
+        return new Parser().parseDocument(_query);
+    }
+
+    @Benchmark
+    public List<ValidationError> validate()
+    {
+        return new Validator().validateDocument(_schema, _document);
+    }
+
+    @Benchmark
+    public Set<String> rootFieldNames()
+    {
+        // the names are cached by query hash; this is the parse a cache miss pays for
+        return GraphQLSelection.parseRootFieldNames(_query);
+    }
+
+    @Benchmark
+    public GraphQLCostAnalyzer.Cost cost()
+    {
+        return GraphQLCostAnalyzer.analyze(_schema, _document, null, false);
+    }
+}
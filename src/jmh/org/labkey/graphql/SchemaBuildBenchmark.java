@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2015 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.labkey.graphql;
+
+import graphql.schema.GraphQLSchema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * graphql-java's schema build, and {@link GraphQLTypeRegistry}'s type reuse, for wide and deeply linked tables.
+ * 'cold' builds every type, as the first request for a container does; 'warm' builds the schema from a registry
+ * that already has the types, as any later request for another query (or after the schema cache entry expires) does.
+ *
+ * The fixture's types stand in for the module's, so this doesn't include reading TableInfo and ColumnInfo or
+ * creating the connection, mutation and lookup fields.  The module's own build, GraphQLController.createSchema(),
+ * is timed against a real table by GraphQLExecutionBenchmark in the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchemaBuildBenchmark
+{
+    @Param({"5", "50"})
+    public int tables;
+
+    @Param({"10", "200"})
+    public int width;
+
+    private GraphQLTypeRegistry _warm;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        _warm = new GraphQLTypeRegistry();
+        BenchmarkFixture.createSchema(_warm, tables, width);
+    }
+
+    @Benchmark
+    public GraphQLSchema cold()
+    {
+        return BenchmarkFixture.createSchema(new GraphQLTypeRegistry(), tables, width);
+    }
+
+    @Benchmark
+    public GraphQLSchema warm()
+    {
+        return BenchmarkFixture.createSchema(_warm, tables, width);
+    }
+}